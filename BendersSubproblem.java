@@ -0,0 +1,220 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class BendersSubproblem implements AutoCloseable {
+
+	/*
+	 *   i. the second stage of MIP-MMDP for a fixed pi, without a solver: once pi is fixed, the flows of a scenario
+	 *      are its forward propagation, thus the scenarios are evaluated by PolicyEvaluator, in parallel over chunks
+	 *      of scenarios. the value of pi is the weighted total reward F(pi) = sum_s weight[s]*reward[s]; it is the
+	 *      objective of MIP as long as rD = 0 (MIP counts Z once per stage, PolicyEvaluator nSBar times, as Graph)
+	 *
+	 *   ii. a cut on (pi, theta) is returned for each candidate pi^ (see getCut), in the form
+	 *       sum_k coef[k]*pi[k] + thetaCoef*theta <= rhs, where pi[t][i] is the k = t*nSBar+i th variable
+	 *   	ii.i.   feasibility cut, if the capacity of stage t is exceeded in some scenario, by more than the relative
+	 *              tolerance EPS as in Cut.isViolated, and t is the first such stage. the usage of stage t only
+	 *              depends on pi[0..t] and it grows with the states acted in at t, thus every pi that agrees with
+	 *              pi^ on the stages before t and acts in every state pi^ acts in at t is infeasible: sum_{k in S1} (1-pi[k]) + sum_{k in S0} pi[k] >= 1, where S1 (S0) are the
+	 *              variables of the stages up to t with pi^[k] = 1 (pi^[k] = 0, stage t excluded)
+	 *      ii.ii.  optimality cut otherwise, the integer L-shaped cut theta <= F(pi^) + (U - F(pi^)) * d(pi, pi^),
+	 *              where d is the Hamming distance to pi^ and U >= F(pi) for any pi (see getUpperBound)
+	 *
+	 *   iii. the master may send the same candidate more than once, thus the evaluations are cached by pi^. an
+	 *        entry only keeps what the cut is built from (value, stage), the key packs pi^ 16 variables per char.
+	 *        the cache keeps the CACHE candidates used last
+	 */
+
+	static final int CACHE = 1 << 16;  // number of candidates whose evaluation is cached
+	static final double EPS = 1e-6;    // relative tolerance of the capacities and of the cuts
+
+	Problem problem;
+	PolicyEvaluator evaluator;
+	int nTBar;
+	int nSBar;
+	double upperBound;
+	Map<String, Candidate> cache;
+	AtomicInteger nEvaluation;
+
+	public BendersSubproblem(Problem problem) {
+		this(problem, Runtime.getRuntime().availableProcessors());
+	}
+
+	public BendersSubproblem(Problem problem, int nThreads) {
+		this.problem = problem;
+		nTBar = problem.nStage-1;
+		nSBar = problem.nState-1;
+
+		// one chunk of scenarios per thread, so that all threads work on a candidate
+		int nScenario = problem.scenarios.length;
+		int chunkSize = Math.max(1, Math.min(PolicyEvaluator.CHUNK, (nScenario + nThreads - 1) / nThreads));
+		evaluator = new PolicyEvaluator(problem, ScenarioSource.of(problem, chunkSize), nThreads);
+		evaluator.weights = problem.weights;
+		evaluator.setUsageKept(false);
+		upperBound = getUpperBound();
+		cache = Collections.synchronizedMap(new LinkedHashMap<String, Candidate>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Candidate> eldest) {
+				return size() > CACHE;
+			}
+		});
+		nEvaluation = new AtomicInteger();
+	}
+
+	static class Candidate {
+
+		// the evaluation of a candidate
+
+		double value;  // F(pi^), if it is feasible
+		int stage;     // the first stage whose capacity is exceeded, -1 if there is none
+	}
+
+	@Override
+	public void close() {
+		evaluator.close();
+	}
+
+	public static class Cut {
+
+		public double[] coef;      // coefficient of pi[t][i] at t*nSBar+i
+		public double thetaCoef;   // 0 for a feasibility cut
+		public double rhs;
+		public boolean isFeasibility;
+		public double value;       // F(pi^), the weighted total reward of the candidate, if it is feasible
+		public int stage;          // the first stage whose capacity is exceeded, if it is not
+
+		public boolean isViolated(double[] pi, double theta) {
+
+			// whether (pi, theta) is cut off, up to a relative tolerance
+
+			double lhs = thetaCoef * theta;
+			for(int k=0;k<coef.length;k++) lhs += coef[k] * pi[k];
+			return lhs > rhs + EPS * Math.max(1, Math.abs(rhs));
+		}
+	}
+
+	public Cut getCut(int[][] strategy) throws IOException {
+		String key = getKey(strategy);
+		Candidate candidate = cache.get(key);
+		if(candidate == null) {
+			PolicyEvaluator.Evaluation evaluation = evaluator.evaluate(strategy);
+			nEvaluation.incrementAndGet();
+			candidate = new Candidate();
+			candidate.stage = -1;
+			for(int t=0;t<nTBar && candidate.stage<0;t++) {
+				if(evaluation.maxUsage[t] > problem.capacity[t] + EPS * Math.max(1, problem.capacity[t])) candidate.stage = t;
+			}
+			for(int l=0;l<evaluation.reward.length;l++) {
+				candidate.value += problem.getWeight(l) * evaluation.reward[l];
+			}
+			cache.put(key, candidate);
+		}
+
+		Cut cut = new Cut();
+		cut.coef = new double[nTBar*nSBar];
+		cut.stage = candidate.stage;
+		if(cut.stage >= 0) {
+
+			// feasibility cut: sum_{S1} pi[k] - sum_{S0} pi[k] <= |S1| - 1
+			cut.isFeasibility = true;
+			int nS1 = 0;
+			for(int t=0;t<=cut.stage;t++) {
+				for(int i=0;i<nSBar;i++) {
+					if(strategy[t][i] == 1) {
+						cut.coef[t*nSBar+i] = 1;
+						nS1++;
+					}else if(t < cut.stage) {
+						cut.coef[t*nSBar+i] = -1;
+					}
+				}
+			}
+			cut.rhs = nS1 - 1;
+		}else {
+
+			// optimality cut: theta + (U-F) * (sum_{S1} pi[k] - sum_{S0} pi[k]) <= F + (U-F) * |S1|
+			double total = candidate.value;
+			cut.value = total;
+			double gap = Math.max(0, upperBound - total);
+			int nS1 = 0;
+			for(int t=0;t<nTBar;t++) {
+				for(int i=0;i<nSBar;i++) {
+					if(strategy[t][i] == 1) {
+						cut.coef[t*nSBar+i] = gap;
+						nS1++;
+					}else {
+						cut.coef[t*nSBar+i] = -gap;
+					}
+				}
+			}
+			cut.thetaCoef = 1;
+			cut.rhs = total + gap * nS1;
+		}
+		return cut;
+	}
+
+	public double getUpperBound() {
+
+		/*
+		 *  U = sum_s weight[s]*U_s, where U_s is the value of scenario s without the capacity, by backward induction
+		 *  over the stages: W(i) = max_a r[i][a] + sum_j P[i][a][j]*W'(j) + Q[i][a]*W'(abs) with W'(j) of the next
+		 *  stage, W(i) = R[i] after the last stage; the absorbed mass earns nSBar*rD in each stage and at the end
+		 */
+
+		double total = 0;
+		double[] value = new double[nSBar];
+		double[] next = new double[nSBar];
+		for(int l=0;l<problem.scenarios.length;l++) {
+			Problem.MDP mdp = problem.scenarios[l];
+			for(int i=0;i<nSBar;i++) value[i] = mdp.getR(i);
+			double absorbed = nSBar * problem.rD;
+			for(int t=nTBar-1;t>=0;t--) {
+				for(int i=0;i<nSBar;i++) {
+					double best = Double.NEGATIVE_INFINITY;
+					for(int a=0;a<2;a++) {
+						double val = mdp.getr(i, a) + mdp.getQ(i, a) * absorbed;
+						for(int j=0;j<nSBar;j++) val += mdp.getP(i, a, j) * value[j];
+						best = Math.max(best, val);
+					}
+					next[i] = best;
+				}
+				double[] swap = value; value = next; next = swap;
+				absorbed += nSBar * problem.rD;
+			}
+			double bound = 0;
+			for(int i=0;i<nSBar;i++) bound += problem.priors[i] * value[i];
+			total += problem.getWeight(l) * bound;
+		}
+		return total;
+	}
+
+	String getKey(int[][] strategy) {
+
+		// pi[t][i] is bit k%16 of char k/16, k = t*nSBar+i
+
+		char[] key = new char[(nTBar*nSBar + 15) / 16];
+		for(int t=0;t<nTBar;t++) {
+			for(int i=0;i<nSBar;i++) {
+				int k = t*nSBar+i;
+				if(strategy[t][i] == 1) key[k >>> 4] |= 1 << (k & 15);
+			}
+		}
+		return new String(key);
+	}
+
+	public int getNumEvaluations() {
+
+		// number of candidates evaluated, a candidate dropped from the cache is counted again once it is evaluated again
+
+		return nEvaluation.get();
+	}
+}
@@ -0,0 +1,223 @@
+package version_2;
+
+
+// Libraries
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class CohortSimulator {
+
+	/*
+	 *   i. simulates the trajectories of the nPop individuals of the cohort under a strategy, for each scenario
+	 *   	i.i.   an individual starts in a state drawn from the priors, it takes the action of the strategy in its
+	 *             state and moves to the next state by P[i][a][.], or to the absorbing state by Q[i][a]
+	 *      i.ii.  the demand of a stage is the number of individuals in it who take the action; it is compared to
+	 *             capacity[t], whereas Graph and MIP only bound its expectation nPop * sum_i X_c[i]
+	 *
+	 *   ii. a run is the trajectories of the whole cohort in one scenario; nReplication runs are made for each
+	 *       scenario. the runs are split into tasks of BATCH runs of a scenario which are run in parallel, each
+	 *       with its own SplittableRandom split from the seed in a fixed order, thus the result only depends on
+	 *       the seed. the demands are counted in one histogram per worker, which are merged once all tasks are
+	 *       done. at most 2*nWorker tasks are submitted ahead, thus the memory does not grow with the scenarios
+	 *
+	 *   iii. the next state is drawn by a linear search on the cumulative probabilities of the row, which are
+	 *        computed once per scenario
+	 */
+
+	static final int BATCH = 64;  // number of runs of a task
+
+	Problem problem;
+	int nTBar;
+	int nSBar;
+	int nThreads;
+
+	public CohortSimulator(Problem problem) {
+		this(problem, Runtime.getRuntime().availableProcessors());
+	}
+
+	public CohortSimulator(Problem problem, int nThreads) {
+		this.problem = problem;
+		this.nThreads = nThreads;
+		nTBar = problem.nStage-1;
+		nSBar = problem.nState-1;
+	}
+
+	public class Result {
+
+		// histogram of the demand d of stage t over all runs at t*(nPop+1)+d
+		public long[] histogram;
+
+		// the number of runs of scenario l in which the demand of stage t exceeds capacity[t], at l*nTBar+t
+		public int[] exceeded;
+
+		public int nReplication;
+		public long nRun;
+		public long nTrajectory;
+
+		Result(int nReplication) {
+			histogram = new long[nTBar*(problem.nPop+1)];
+			exceeded = new int[problem.scenarios.length*nTBar];
+			this.nReplication = nReplication;
+			nRun = (long) nReplication * problem.scenarios.length;
+			nTrajectory = nRun * problem.nPop;
+		}
+
+		public long getCount(int t, int demand) {
+			return histogram[t*(problem.nPop+1)+demand];
+		}
+
+		public double getMean(int t) {
+			double total = 0;
+			for(int d=0;d<=problem.nPop;d++) total += (double) d * getCount(t, d);
+			return total / nRun;
+		}
+
+		public int getQuantile(int t, double q) {
+
+			// the smallest demand d such that the share of the runs with demand at most d is at least q
+
+			long target = (long) Math.ceil(q * nRun);
+			long count = 0;
+			for(int d=0;d<=problem.nPop;d++) {
+				count += getCount(t, d);
+				if(count >= Math.max(target, 1)) return d;
+			}
+			return problem.nPop;
+		}
+
+		public double getExceedance(int t) {
+
+			// the probability that the demand of stage t exceeds capacity[t], the scenarios are weighted
+
+			double total = 0;
+			for(int l=0;l<problem.scenarios.length;l++) {
+				total += problem.getWeight(l) * exceeded[l*nTBar+t];
+			}
+			return total / (problem.getTotalWeight() * nReplication);
+		}
+
+		public double getWorstExceedance() {
+			double worst = 0;
+			for(int t=0;t<nTBar;t++) worst = Math.max(worst, getExceedance(t));
+			return worst;
+		}
+	}
+
+	public Result simulate(int[][] strategy, int nReplication, long seed) throws InterruptedException {
+
+		int nScenario = problem.scenarios.length;
+		Result result = new Result(nReplication);
+		int nBatch = (nReplication + BATCH - 1) / BATCH;
+		int nWorker = Math.min(nScenario*nBatch, nThreads);
+		if(nWorker == 0) return result;
+
+		SplittableRandom root = new SplittableRandom(seed);
+		List<long[]> histograms = Collections.synchronizedList(new ArrayList<long[]>());
+		ThreadLocal<long[]> local = ThreadLocal.withInitial(() -> {
+			long[] histogram = new long[nTBar*(problem.nPop+1)];
+			histograms.add(histogram);
+			return histogram;
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(nWorker);
+		try {
+			ArrayDeque<Future<?>> futures = new ArrayDeque<Future<?>>();
+			for(int l=0;l<nScenario;l++)
+			{
+				double[] cumulative = getCumulative(problem.scenarios[l]);
+				for(int k=0;k<nBatch;k++)
+				{
+					int scenario = l;
+					int nRun = Math.min(BATCH, nReplication - k*BATCH);
+					SplittableRandom random = root.split();
+					if(futures.size() >= 2*nWorker) futures.poll().get();
+					futures.add(executor.submit(() -> {
+						long[] histogram = local.get();
+						int[] demand = new int[nTBar];
+						int[] exceeded = new int[nTBar];
+						for(int run=0;run<nRun;run++)
+						{
+							simulate(strategy, cumulative, random, demand);
+							for(int t=0;t<nTBar;t++) {
+								histogram[t*(problem.nPop+1)+demand[t]]++;
+								if(demand[t] > problem.capacity[t]) exceeded[t]++;
+							}
+						}
+						synchronized(result) {
+							for(int t=0;t<nTBar;t++) result.exceeded[scenario*nTBar+t] += exceeded[t];
+						}
+					}));
+				}
+			}
+			while(!futures.isEmpty()) futures.poll().get();
+			for(long[] histogram: histograms)
+			{
+				for(int k=0;k<histogram.length;k++) result.histogram[k] += histogram[k];
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		return result;
+	}
+
+	double[] getCumulative(Problem.MDP mdp) {
+
+		// cumulative probabilities of the row (i, a) at (i*2+a)*(nSBar+1); the last one is the absorbing state
+
+		double[] cumulative = new double[nSBar*2*(nSBar+1)];
+		for(int i=0;i<nSBar;i++) {
+			for(int a=0;a<2;a++) {
+				int base = (i*2+a)*(nSBar+1);
+				double total = 0;
+				for(int j=0;j<nSBar;j++) {
+					total += mdp.getP(i, a, j);
+					cumulative[base+j] = total;
+				}
+				cumulative[base+nSBar] = total + mdp.getQ(i, a);
+			}
+		}
+		return cumulative;
+	}
+
+	void simulate(int[][] strategy, double[] cumulative, SplittableRandom random, int[] demand) {
+
+		// one run: the demand of each stage over the trajectories of the cohort
+
+		for(int t=0;t<nTBar;t++) demand[t] = 0;
+		for(int k=0;k<problem.nPop;k++)
+		{
+			int state = draw(problem.priors, random.nextDouble());
+			for(int t=0;t<nTBar && state<nSBar;t++) {
+				int a = strategy[t][state];
+				demand[t] += a;
+				int base = (state*2+a)*(nSBar+1);
+				double u = random.nextDouble() * cumulative[base+nSBar];
+				int next = 0;
+				while(next < nSBar && u >= cumulative[base+next]) next++;
+				state = next;
+			}
+		}
+	}
+
+	int draw(double[] priors, double u) {
+		int state = 0;
+		double total = priors[0];
+		while(state < nSBar-1 && u >= total) {
+			state++;
+			total += priors[state];
+		}
+		return state;
+	}
+}
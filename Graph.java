@@ -3,6 +3,10 @@ package version_2;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
@@ -11,154 +15,384 @@ import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 
-public class Graph {
+public class Graph implements AutoCloseable {
 
 	Problem problem;  // a graph to which problem
 	int nScenario;
+	double [] weight;  // weight of each scenario, see Problem.getWeight
+	double totalWeight;
 	int nTBar;	// number of stages in which we are allowed to take an action
 	int nSBar;  // number of non-absorbing states
-	ArrayList<Integer> scenarioIndexes;
+	int nPolicy;  // number of stage policies, 2^nSBar
+	
+	// parallel engine: the work of a stage is split into ranges of nodes and run on a dedicated pool (see close)
+	int nThreads;
+	ForkJoinPool pool;
 
-	// graph data structure
-	HashMap<Integer, ArrayList<Node>> tNodeMap;
+	// graph data structure: the nodes of the last processed stage, indexed by mask. only the stages t-1 and t
+	// are kept in memory; the path is recovered from predecessor[t][mask], the policy of the best predecessor
+	// of (t, mask) in t-1 (-1 if the node is not reached)
+	Node[] stageNodes;
+	Arena stageArena;  // occupancy measures of stageNodes
+	int[][] predecessor;
+	
+	// beam mode (see runBeam), beamWidth=0 means that every policy of every stage is enumerated.
+	// the nodes of a stage are not indexed by mask; beamPolicies[t][k] is the policy of the k-th node of
+	// stage t and beamPrevious[t][k] is the index of its best predecessor in stage t-1
+	int beamWidth;
+	int nFlips;       // a successor differs from its predecessor in at most nFlips states
+	int[] flipSets;   // the sets of at most nFlips states, as masks
+	int[][] beamPolicies;
+	int[][] beamPrevious;
+	ThreadLocal<ArcEvaluator> evaluators;
+	List<ArcEvaluator> allEvaluators;  // the evaluators used in this round, cleared at the start of each round
+	int round;  // incremented for each processed stage
+	
+	// propagation kernels and the reward coefficients of the states, (l*2+a)*nSBar+j for scenario l and action a
+	Kernels kernels;
+	boolean isBatched;  // whether the from-nodes of a stage are propagated together (see propagateBlock)
+	int scenarioBlock;  // number of scenarios whose successor occupancy is kept at a time (see forEachBlock)
+	ThreadLocal<Successors> successors;
+	double [] stageCoef;  // weight[l]*r[j][a]
+	double [] lastCoef;   // r[j][a] plus the terminal reward of leaving j with a, for the arcs into t=T-2
+	
+	// budget of a run (see runADP(double, AtomicBoolean, ProgressListener))
+	long deadline;             // in terms of System.nanoTime()
+	AtomicBoolean cancel;      // the run stops once it is set, null if it cannot be cancelled
+	ProgressListener listener; // null if no progress is reported
+	double startTime;
 	
 	// result
-	ArrayList<Node> path;
+	int [] path;  // policy of each stage
+	int horizon;  // number of stages solved by PADP, the later ones are completed greedily (see completeGreedily)
 	double totalLength = 0;
 	double elapsedTime = 0;
 	int [][] strategy;
 	
 	Graph(Problem problem){
+		this(problem, Runtime.getRuntime().availableProcessors());
+	}
+	
+	Graph(Problem problem, int nThreads){
 		this.problem = problem;
+		this.nThreads = nThreads;
+		pool = new ForkJoinPool(nThreads);
 		nScenario = problem.scenarios.length;
+		weight = new double[nScenario];
+		for(int l=0;l<nScenario;l++) weight[l] = problem.getWeight(l);
+		totalWeight = problem.getTotalWeight();
 		nTBar = problem.nStage-1;
 		nSBar = problem.nState-1;
-		scenarioIndexes = new ArrayList<Integer>();
-		for(int i=0;i<nScenario;i++) scenarioIndexes.add(i);
+		if(nSBar > 30) {
+			throw new IllegalArgumentException("Policies of more than 30 non-absorbing states cannot be encoded");
+		}
+		nPolicy = 1 << nSBar;
 		
-		path = new ArrayList<Graph.Node>();
-		tNodeMap =  new HashMap<Integer, ArrayList<Node>>();
+		path = new int[nTBar];
+		predecessor = new int[nTBar][];
+		allEvaluators = Collections.synchronizedList(new ArrayList<ArcEvaluator>());
+		evaluators = ThreadLocal.withInitial(() -> new ArcEvaluator());
+		round = 0;
+		kernels = new Kernels(problem);
+		isBatched = true;
+		scenarioBlock = 256;
+		successors = ThreadLocal.withInitial(() -> new Successors());
+		setCoefficients();
+		beamWidth = 0;
+		nFlips = 1;
+		deadline = Long.MAX_VALUE;
 		
-		construct();
 		strategy = new int[nTBar][nSBar];
 	}
 	
-	class Node{
+	class Arena{
 		
-		int t;         // associated stage
-		boolean[] pi;  // policy
+		/*
+		 *  i.  stage-scoped, flat storage of the occupancy measures of the nodes of a stage
+		 *  ii. a node owns a slot; its measures are laid out scenario by scenario
+		 *      	ii.i.   X_n, X_c, (slot, l, i) is stored at (slot*nScenario + l)*nSBar + i
+		 *          ii.ii.  Z,        (slot, l)    is stored at slot*nScenario + l
+		 *          ii.iii. C, K,      reward coefficients of the successor occupancy (see Node.addCoefficients),
+		 *                  C of (slot, a, j) is stored at (slot*2 + a)*nSBar + j and K of slot at slot.
+		 *                  they are only allocated while the next stage is processed
+		 *          ii.iv.  V, Z_next, successor occupancy of the slot, laid out as X_n and Z. it is only allocated
+		 *                  for a node completed greedily, which has an arena of its own (see completeGreedily); the
+		 *                  stages take it block by block instead (see forEachBlock)
+		 */
 		
-		// Occupancy measures
-		double [][] X_n;
-		double [][] X_c;
+		double [] X_n;
+		double [] X_c;
 		double [] Z;
 		
+		double [] V;
+		double [] Z_next;
+		double [] C;
+		double [] K;
+		
+		int size;  // number of allocated slots
+		
+		Arena(int capacity){
+			capacity = Math.max(capacity, 1);
+			X_n = new double[capacity*nScenario*nSBar];
+			X_c = new double[capacity*nScenario*nSBar];
+			Z = new double[capacity*nScenario];
+			size = 0;
+		}
+		
+		int allocate() {
+			
+			// returns a new, zero-filled slot; the arrays are doubled when they are full
+			
+			if((size+1)*nScenario > Z.length) {
+				int capacity = 2 * Z.length / nScenario;
+				X_n = Arrays.copyOf(X_n, capacity*nScenario*nSBar);
+				X_c = Arrays.copyOf(X_c, capacity*nScenario*nSBar);
+				Z = Arrays.copyOf(Z, capacity*nScenario);
+			}
+			return size++;
+		}
+		
+		int offset(int slot, int l) {
+			return (slot*nScenario + l)*nSBar;
+		}
+		
+		void allocateCoefficients() {
+			if(C == null) {
+				C = new double[size*2*nSBar];
+				K = new double[size];
+			}
+		}
+		
+		void allocateSuccessors() {
+			allocateCoefficients();
+			if(V == null) {
+				V = new double[size*nScenario*nSBar];
+				Z_next = new double[size*nScenario];
+			}
+		}
+	}
+	
+	class Node{
+		
+		int t;   // associated stage
+		int pi;  // policy, bit i is set if the action is taken in state i
+		
+		// Occupancy measures are kept in the arena of the stage (-1 until the node is reached)
+		Arena arena;
+		int slot;
+		
 		double obj;
 		double value;
 		
-		Node previous;
-		
-		Node(int t, boolean[] pi){
+		Node(int t, int pi, Arena arena){
+			
+			// occupancy measures of t>0 nodes are allocated once the node is reached.
+			// slots are taken one by one, the measures may be computed in parallel afterwards.
+			
 			this.t = t; 
 			this.pi = pi;
-			X_n = new double[nScenario][nSBar];
-			X_c = new double[nScenario][nSBar];
-			Z = new double[nScenario];
+			this.arena = arena;
+			slot = -1;
 			obj = 0;
-			initOccupancyMeasure();  // it works only if t=0.
-			previous = null;
+			if(t==0) makeDefault();
 		}
 		
-		Node(Node node){
-			this.t = node.t;
-			this.pi = node.pi;
-			this.X_n = node.X_n;
-			this.X_c = node.X_c;
-			Z = node.Z;
-			this.obj = node.obj;
-			this.value = node.value;
-			this.previous = node.previous;
+		Arena arena() {
+			return arena;
 		}
 		
 		void initOccupancyMeasure() {
 			if(t==0) {
 				
 				// occupacy measure computation
-				scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
+				Arena arena = arena();
+				for(int l=0;l<nScenario;l++) {
+					int base = arena.offset(slot, l);
 					for(int i=0;i<nSBar;i++) {
-						if(pi[i]==false) {
-							X_n[l][i] = problem.priors[i];
-							X_c[l][i] = 0;
+						if(!intervenes(i)) {
+							arena.X_n[base+i] = problem.priors[i];
+							arena.X_c[base+i] = 0;
 						}else {
-							X_n[l][i] = 0;
-							X_c[l][i] = problem.priors[i];
+							arena.X_n[base+i] = 0;
+							arena.X_c[base+i] = problem.priors[i];
 						}
 					}
-					Z[l] = 0;
-				});
+					arena.Z[slot*nScenario+l] = 0;
+				}
 				
 				// stage-reward computation
-				double[] scenarioReward = new double[nScenario];
-				scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-					scenarioReward[l] = 0;
-					for(int i=0;i<nSBar;i++) {
-						scenarioReward[l] += X_n[l][i]*problem.scenarios[l].r[i][0] + X_c[l][i]*problem.scenarios[l].r[i][1] + Z[l] * problem.rD; 
-					}
-				});
-				double sum_ = 0;
-				for(int i=0;i<nScenario;i++) sum_ += scenarioReward[i];
-				obj = sum_;
+				setObj();
 				value = obj;
 			}
 		}
 		
 		void makeDefault() {
 			
-			// makes the occupancy measures empty again
-			X_n = new double[nScenario][nSBar];
-			X_c = new double[nScenario][nSBar];
-			Z = new double[nScenario];
+			// takes an empty slot for the occupancy measures
+			slot = arena().allocate();
 			obj = 0;
 		}
 	
-		void setOccupancyMeasures(double [][] xn, double [][] xc, double [] z) {
+		boolean intervenes(int i) {
+			return isSet(pi, i);
+		}
+		
+		void setOccupancyMeasures(Node from) {
 			
-			// sets given measures and update the obj
+			// sets the measures carried by the arc (from, this) and update the obj.
+			// be aware of that the successor arrays of the arena of from are already allocated
 			
-			for(int l=0;l<nScenario;l++) {
+			Arena fromArena = from.arena();
+			setOccupancyMeasures(fromArena.V, fromArena.Z_next, from.slot*nScenario, 0, nScenario);
+			
+			// update
+			setObj();
+		}
+		
+		void setOccupancyMeasures(double[] V, double[] Z_next, int v, int lo, int hi) {
+			
+			// sets the measures of the scenarios [lo, hi) from the successor occupancy of a predecessor, the one of
+			// scenario l is at V[(v+l-lo)*nSBar...] and Z_next[v+l-lo]. the obj is not updated
+			
+			Arena arena = arena();
+			for(int l=lo;l<hi;l++) {
+				int base = arena.offset(slot, l);
+				int fromBase = (v+l-lo)*nSBar;
 				for(int i=0;i<nSBar;i++) {
-					X_n[l][i] = xn[l][i];
-					X_c[l][i] = xc[l][i];
-					Z[l] = z[l];
+					double val = V[fromBase+i];
+					if(!intervenes(i)) {
+						arena.X_n[base+i] = val;
+						arena.X_c[base+i] = 0;
+					}else {
+						arena.X_n[base+i] = 0;
+						arena.X_c[base+i] = val;
+					}
 				}
+				arena.Z[slot*nScenario+l] = Z_next[v+l-lo];
 			}
+		}
+		
+		Node detach() {
 			
-			// update
+			// a copy of the node in an arena of its own, so that its successor occupancy can be computed without the
+			// rest of the stage (see completeGreedily)
+			
+			Node node = new Node(t, pi, new Arena(1));
+			if(node.slot < 0) node.makeDefault();
+			node.obj = obj;
+			node.value = value;
+			Arena arena = arena();
+			System.arraycopy(arena.X_n, arena.offset(slot, 0), node.arena.X_n, 0, nScenario*nSBar);
+			System.arraycopy(arena.X_c, arena.offset(slot, 0), node.arena.X_c, 0, nScenario*nSBar);
+			System.arraycopy(arena.Z, slot*nScenario, node.arena.Z, 0, nScenario);
+			return node;
+		}
+		
+		void setObj() {
+			
+			// stage reward of the node summed over the scenarios
 			
-			double[] scenarioReward = new double[nScenario];
-			scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-				scenarioReward[l] = 0;
+			Arena arena = arena();
+			obj = 0;
+			for(int l=0;l<nScenario;l++) {
+				int base = arena.offset(slot, l);
+				double z = arena.Z[slot*nScenario+l];
 				for(int i=0;i<nSBar;i++) {
-					scenarioReward[l] += X_n[l][i]*problem.scenarios[l].r[i][0] + X_c[l][i]*problem.scenarios[l].r[i][1] + Z[l] * problem.rD; 
+					obj += arena.X_n[base+i]*stageCoef[(l*2)*nSBar+i] + arena.X_c[base+i]*stageCoef[(l*2+1)*nSBar+i] + z * problem.rD * weight[l]; 
 				}
-			});
-			obj = 0;
-			for(int i=0;i<nScenario;i++) obj += scenarioReward[i];
-
+			}
 		}
 
+		void propagate() {
+			
+			// computes the next-stage occupancy before the policy of the successor splits it.
+			// it only depends on this node, so it is done once and shared by all outgoing arcs.
+			// be aware of that the successor arrays of the arena are already allocated
+			
+			Arena arena = arena();
+			for(int l=0;l<nScenario;l++) {
+				int base = arena.offset(slot, l);
+				arena.Z_next[slot*nScenario+l] = arena.Z[slot*nScenario+l] + kernels.propagate(l, arena.X_n, arena.X_c, base, arena.V, base);
+			}
+			setCoefficients();
+		}
+		
+		void setCoefficients() {
+			addCoefficients(arena.V, arena.Z_next, slot*nScenario, 0, nScenario);
+		}
+		
+		void addCoefficients(double[] V, double[] Z_next, int v, int lo, int hi) {
+			
+			// the length of an arc (this, to) is K + sum_j C[a_j][j], where a_j is the action of to.pi in j.
+			// if the successor is in t=T-2, the terminal reward of Y and Z2 is included as well (see Graph.setCoefficients).
+			// the scenarios [lo, hi) are added, their successor occupancy is laid out as in setOccupancyMeasures;
+			// the coefficients are reset once lo=0, thus the blocks of scenarios are added in increasing order
+			
+			Arena arena = arena();
+			boolean isLast = t+1 == problem.nStage-2;
+			double[] coef = isLast ? lastCoef : stageCoef;
+			int cBase = slot*2*nSBar;
+			if(lo == 0) {
+				Arrays.fill(arena.C, cBase, cBase+2*nSBar, 0);  // the node may be propagated again (see completeGreedily)
+				arena.K[slot] = 0;
+			}
+			for(int l=lo;l<hi;l++) {
+				int base = (v+l-lo)*nSBar;
+				double z = Z_next[v+l-lo];
+				arena.K[slot] += nSBar * z * problem.rD * weight[l];
+				if(isLast) arena.K[slot] += nSBar * z * problem.rD * weight[l];
+				for(int a=0;a<2;a++) {
+					kernels.accumulate(V, base, coef, (l*2+a)*nSBar, arena.C, cBase+a*nSBar);
+				}
+			}
+		}
+		
+		boolean canReach(int mask, int t) {
+			return canReach(mask, t, arena.V, slot*nScenario, 0, nScenario);
+		}
+		
+		boolean canReach(int mask, int t, double[] V, int v, int lo, int hi) {
+			
+			// checks the capacity usage of the arc from this node to the policy mask of stage t, scenario by scenario,
+			// in the scenarios [lo, hi) whose successor occupancy is laid out as in setOccupancyMeasures
+			
+			for(int l=lo;l<hi;l++) {
+				int base = (v+l-lo)*nSBar;
+				double use = 0;
+				for(int rest=mask;rest!=0;rest&=rest-1) {
+					use += V[base+Integer.numberOfTrailingZeros(rest)];
+				}
+				if(problem.nPop * use > problem.capacity[t]) return false;
+			}
+			return true;
+		}
+		
+		double getArcLength(int mask) {
+			
+			// length of the arc from this node to the policy mask (see setCoefficients)
+			
+			int cBase = slot*2*nSBar;
+			double length = arena.K[slot];
+			for(int i=0;i<nSBar;i++) {
+				length += arena.C[cBase + (isSet(mask, i) ? nSBar : 0) + i];
+			}
+			return length;
+		}
+		
 		public double[] getCapacityUsage() {
 			
 			// computes and returns capacity usages for each scenario
 			
+			Arena arena = arena();
 			double[] usage = new double[nScenario];
-			scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-					double use = 0;
-					for(int i=0;i<nSBar;i++) {
-						use += X_c[l][i];
-					}
-					usage[l] = problem.nPop * use;
-			});
+			for(int l=0;l<nScenario;l++) {
+				int base = arena.offset(slot, l);
+				double use = 0;
+				for(int i=0;i<nSBar;i++) {
+					use += arena.X_c[base+i];
+				}
+				usage[l] = problem.nPop * use;
+			}
 			
 			return usage;
 		}
@@ -179,240 +413,914 @@ public class Graph {
 		}
 	}
 	
-	class Arc{
+	class ArcEvaluator{
+		
+		/*
+		 *  Enumerates and scores the arcs (from, to) leaving one from-node without materializing them.
+		 *  i.   an arc carries the successor occupancy of the from-node (see Arena.V), split by to.pi:
+		 *       	i.i.   X_n[l][j] = V[l][j] if to.pi does not act in j; otherwise 0
+		 *          i.ii.  X_c[l][j] = V[l][j] if to.pi acts in j;         otherwise 0
+		 *          i.iii. Z[l]      = Z_next[l]
+		 *  ii.  capacity usage is monotone in to.pi: if acting in a set of states violates the capacity
+		 *       in some scenario, acting in any superset of it violates the capacity as well. Thus,
+		 *       	ii.i.   to-policies are enumerated in increasing mask order as a subset tree, where a
+		 *                  child acts in one more state, lower than all the states its parent acts in
+		 *          ii.ii.  the usage of a child is the usage of its parent plus the occupancy of the added
+		 *                  state, and the check stops at the first violated scenario
+		 *          ii.iii. a mask is evaluated only if all of its immediate subsets are feasible; the
+		 *                  subtree of an infeasible mask is never visited
+		 *  iii. the length of a feasible arc is linear in the split, thus it is read from the
+		 *       coefficients of the from-node (see Node.propagate) and updated along the tree as well
+		 *  iv.  the best predecessor of each to-policy among the from-nodes evaluated by this thread is
+		 *       tracked in place (bestValue, bestIndex); ties are broken by the lower from-node index,
+		 *       so merging the evaluators of a stage (see mergeEvaluators) does not depend on scheduling
+		 *  v.   the scenarios come in blocks (see forEachBlock). a mask is feasible if it is feasible in every
+		 *       block, thus the tree of a block only visits the masks found feasible in the previous blocks of
+		 *       the from-node (allowed). the arcs are scored in the last block, once the coefficients are complete
+		 *  
+		 *  One evaluator is kept per thread and reused for every from-node (see evaluators). it joins allEvaluators
+		 *  once per round, thus the evaluator of a thread of the pool that has ended is dropped with the thread
+		 */
+		
+		int t;      // stage of the to-nodes
+		int round;  // the round in which the best predecessors are collected
+		long nArc;     // number of feasible arcs visited in this round
+		long nPruned;  // number of arcs found to violate the capacity in this round
 		
+		// best predecessor of each to-policy, indexed by mask (bestIndex=-1 if there is none)
+		double [] bestValue;
+		int [] bestIndex;
+		
+		// current from-node and block of scenarios, the successor occupancy of scenario l is at V[(v+l-lo)*nSBar...]
 		Node from;
-		Node to;
+		int index;
+		Arena arena;
+		int cBase;
+		double [] V;
+		int v;
+		int lo;
+		int hi;
+		boolean isLast;
 		
-		// Occupancy measures
-		double [][] X_n;
-		double [][] X_c;
-		double [] Z;
+		// scratch
+		double [][] usage;  // usage[d][l-lo], capacity usage of the mask visited on the d-th level of the tree
+		long [] feasible;   // bitmap of the masks found feasible for the current from-node in the current block
+		long [] prior;      // bitmap of the masks found feasible in the previous blocks, null in the first block
+		long [] spare;
+		long [][] allowed;  // allowed[p], the bitmap of the p-th from-node of the range kept between the blocks
 		
-		// if to.t=T-2; otherwise null
-		double [][] Y;
-		double [] Z2;
+		ArcEvaluator(){
+			usage = new double[nSBar+1][0];
+			spare = new long[(nPolicy+63)/64];
+			allowed = new long[0][];
+			bestValue = new double[nPolicy];
+			bestIndex = new int[nPolicy];
+			round = -1;
+		}
 		
-		// length of the artc
-		double length = 0;
+		void reset(int t) {
+			
+			// forgets the best predecessors of the previous round
+			
+			this.t = t;
+			round = Graph.this.round;
+			Arrays.fill(bestIndex, -1);
+			nArc = 0;
+			nPruned = 0;
+			allEvaluators.add(this);
+		}
 		
-		Arc(Node from, Node to){
+		void evaluate(Node from, int index, int t, int p, double[] V, int v, int lo, int hi) {
+			
+			// visits every feasible to-policy of the arcs leaving the given node in the scenarios [lo, hi), index is its
+			// position among the from-nodes and p its position in the range of from-nodes of this thread
+			
+			if(round != Graph.this.round) reset(t);
 			this.from = from;
-			this.to = to;
-			X_n = new double[nScenario][nSBar];
-			X_c = new double[nScenario][nSBar];
-			Z = new double[nScenario];
-			if (to.t == problem.nStage-2) {
-				Y = new double[nScenario][nSBar];
-				Z2 = new double[nScenario];
+			this.index = index;
+			arena = from.arena();
+			cBase = from.slot*2*nSBar;
+			this.V = V;
+			this.v = v;
+			this.lo = lo;
+			this.hi = hi;
+			isLast = hi == nScenario;
+			if(usage[0].length < hi-lo) {
+				for(int d=0;d<=nSBar;d++) usage[d] = new double[hi-lo];
 			}
-			setOccupancyMeasures();
-			setLength();
+			
+			// the bitmap of the node is kept in allowed[p] from one block to the next, unless there is a single block
+			prior = null;
+			feasible = spare;
+			if(!(lo == 0 && isLast)) {
+				if(allowed.length <= p) allowed = Arrays.copyOf(allowed, p+1);
+				if(allowed[p] == null) allowed[p] = new long[spare.length];
+				if(lo == 0) feasible = allowed[p];
+				else {
+					prior = allowed[p];
+					allowed[p] = feasible;
+					spare = prior;
+				}
+			}
+			Arrays.fill(feasible, 0L);
+			
+			// acting in no state uses no capacity
+			Arrays.fill(usage[0], 0, hi-lo, 0);
+			double length = 0;
+			if(isLast) {
+				length = arena.K[from.slot];
+				for(int i=0;i<nSBar;i++) {
+					length += arena.C[cBase+i];
+				}
+			}
+			visit(0, 0, length);
 		}
 		
-		void setOccupancyMeasures() {
+		void visit(int mask, int depth, double length) {
 			
-			double[][] Xn_prime = from.X_n;			
-			double[][] Xc_prime = from.X_c;
-			double[]   Z_prime = from.Z;
+			// mask is feasible and its usage is in usage[depth]
 			
-			scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-				for(int j=0;j<nSBar;j++) {
-					
-					double val = 0;
-					for(int i=0;i<nSBar;i++) {
-						val += Xn_prime[l][i] * problem.scenarios[l].P[i][0][j] + Xc_prime[l][i] * problem.scenarios[l].P[i][1][j];
-					}
-					
-					if(to.pi[j]==false) {
-						X_n[l][j] = val;
-						X_c[l][j] = 0;
-					}else {
-						X_n[l][j] = 0;
-						X_c[l][j] = val;
-					}
+			feasible[mask >>> 6] |= 1L << (mask & 63);
+			if(isLast) {
+				nArc++;
+				double val = from.value + length;
+				if(bestIndex[mask] < 0 || val > bestValue[mask] || (val == bestValue[mask] && index < bestIndex[mask])) {
+					bestIndex[mask] = index;
+					bestValue[mask] = val;
 				}
-				Z[l] = Z_prime[l];
-				for(int i=0;i<nSBar;i++) {
-					Z[l] += Xn_prime[l][i] * problem.scenarios[l].Q[i][0] + Xc_prime[l][i] * problem.scenarios[l].Q[i][1];
+			}
+			
+			int low = (mask == 0) ? nSBar : Integer.numberOfTrailingZeros(mask);
+			for(int j=0;j<low;j++) {
+				int child = mask | (1 << j);
+				if(!hasFeasibleSubsets(child, mask)) continue;
+				if(!isAllowed(child) || !addState(depth, j)) {
+					if(isLast) nPruned++;
+					continue;
 				}
-			});
+				visit(child, depth+1, isLast ? length - arena.C[cBase+j] + arena.C[cBase+nSBar+j] : 0);
+			}
+		}
+		
+		boolean hasFeasibleSubsets(int child, int mask) {
 			
-			if(to.t==problem.nStage-2) {
-				scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-					for(int j=0;j<nSBar;j++) {
-						Y[l][j] = 0;
-						for(int i=0;i<nSBar;i++) {
-							Y[l][j] += X_n[l][i] * problem.scenarios[l].P[i][0][j] + X_c[l][i] * problem.scenarios[l].P[i][1][j];
-						}
-					}
-					Z2[l] = Z[l];
-					for(int i=0;i<nSBar;i++) {
-						Z2[l] += X_n[l][i] * problem.scenarios[l].Q[i][0] + X_c[l][i] * problem.scenarios[l].Q[i][1];
-					}
-				});
+			// the subsets of child without one state of mask are smaller than child, thus already visited
+			
+			for(int rest=mask;rest!=0;rest&=rest-1) {
+				int subset = child & ~Integer.lowestOneBit(rest);
+				if((feasible[subset >>> 6] & (1L << (subset & 63))) == 0) return false;
 			}
+			return true;
 		}
-	
-		void setLength() {
+		
+		boolean isAllowed(int mask) {
+			return prior == null || (prior[mask >>> 6] & (1L << (mask & 63))) != 0;
+		}
+		
+		boolean addState(int depth, int j) {
 			
-			double[] scenarioReward = new double[nScenario];
-			scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-				scenarioReward[l] = 0;
-				for(int i=0;i<nSBar;i++) {
-					scenarioReward[l] += X_n[l][i]*problem.scenarios[l].r[i][0] + X_c[l][i]*problem.scenarios[l].r[i][1] + Z[l] * problem.rD; 
-				}
-			});
-			length = 0;
-			for(int i=0;i<nScenario;i++) length += scenarioReward[i];
+			// usage[depth+1] = usage[depth] + the usage of state j, checked scenario by scenario
 			
-			if(to.t == problem.nStage-2) {
-				double[] scenarioReward2 = new double[nScenario];
-				scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-					scenarioReward2[l] = 0;
-					for(int i=0;i<nSBar;i++) {
-						scenarioReward2[l] += Y[l][i]*problem.scenarios[l].R[i] + Z2[l]*problem.rD;
+			double[] prev = usage[depth];
+			double[] next = usage[depth+1];
+			for(int l=lo;l<hi;l++) {
+				double use = prev[l-lo] + problem.nPop * V[(v+l-lo)*nSBar+j];
+				if(use > problem.capacity[t]) return false;
+				next[l-lo] = use;
+			}
+			return true;
+		}
+	}
+	
+	void construct() {
+		
+		// only the nodes of t=0 are constructed. Nodes of later stages are created once they are reached
+		Node[] timeNodes = new Node[nPolicy];
+		Arena arena = new Arena(nPolicy);
+		for(int mask=0;mask<nPolicy;mask++) {
+			timeNodes[mask] = new Node(0, mask, arena);
+		}
+		parallelFor(nPolicy, (mask)->timeNodes[mask].initOccupancyMeasure());  // parallel for each node
+		stageNodes = timeNodes;
+		stageArena = arena;
+	}
+	
+	void parallelFor(int n, IntConsumer body) {
+		
+		// runs body for 0,...,n-1 on the pool, in blocks of consecutive indexes, and returns once all of them are done
+		
+		if(n <= 0) return;
+		int grain = Math.max(1, n / (4*nThreads));
+		pool.invoke(new Block(0, n, grain, body));
+	}
+	
+	static class Block extends RecursiveAction{
+		
+		private static final long serialVersionUID = 1L;
+		
+		int from;
+		int to;
+		int grain;
+		IntConsumer body;
+		
+		Block(int from, int to, int grain, IntConsumer body){
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.body = body;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to-from <= grain) {
+				for(int k=from;k<to;k++) body.accept(k);
+			}else {
+				int mid = (from+to) >>> 1;
+				invokeAll(new Block(from, mid, grain, body), new Block(mid, to, grain, body));
+			}
+		}
+	}
+	
+	void setCoefficients() {
+		
+		// the reward of state j with action a, for each scenario. in the last step, it also includes the
+		// terminal reward after leaving j, i.e. sum_k P[j][a][k]*R[k] + nSBar*rD*Q[j][a].
+		// both are multiplied by the weight of the scenario
+		
+		stageCoef = new double[nScenario*2*nSBar];
+		lastCoef = new double[nScenario*2*nSBar];
+		for(int l=0;l<nScenario;l++) {
+			Problem.MDP mdp = problem.scenarios[l];
+			for(int a=0;a<2;a++) {
+				for(int j=0;j<nSBar;j++) {
+					double val = 0;
+					for(int k=0;k<nSBar;k++) {
+						val += mdp.getP(j, a, k) * mdp.getR(k);
 					}
-				});
-				for(int i=0;i<problem.scenarios.length;i++) length += scenarioReward2[i];
+					stageCoef[(l*2+a)*nSBar+j] = weight[l] * mdp.getr(j, a);
+					lastCoef[(l*2+a)*nSBar+j] = weight[l] * (mdp.getr(j, a) + val + nSBar * problem.rD * mdp.getQ(j, a));
+				}
 			}
 		}
+	}
 	
-		public double[] getCapacityUsage() {
+	void setBackend(Kernels.Backend backend) {
+		kernels.setBackend(backend);
+	}
+	
+	void runADP() {
+		runADP(0, null, null);
+	}
+	
+	void runADP(double timeLim, AtomicBoolean cancel, ProgressListener listener) {
+		
+		/*
+		 *  Budgeted run of PADP:
+		 *  i.   if timeLim > 0, the run stops once timeLim seconds have passed. it also stops once cancel is set
+		 *  ii.  the budget is checked before each stage and between the from-nodes of a stage. the stage in which
+		 *       the run stops is dropped, thus the nodes of the last completed stage are kept
+		 *  iii. the path of the best of these nodes is completed greedily up to the last stage (see completeGreedily),
+		 *       so that the result is a feasible strategy of the whole horizon. horizon is the number of stages
+		 *       solved by PADP
+		 *  iv.  the listener, if any, is called on this thread once a stage is done (see Progress)
+		 */
+		
+		startTime = System.nanoTime();
+		deadline = (timeLim > 0) ? (long) startTime + (long) (timeLim * 1000000000) : Long.MAX_VALUE;
+		this.cancel = cancel;
+		this.listener = listener;
+		horizon = nTBar;
+		totalLength = Double.NEGATIVE_INFINITY;
+		
+		if(beamWidth > 0) {
+			runBeam();
+			return;
+		}
+		
+		double stageStart = System.nanoTime();
+		construct();
+		
+		//INITIALIZATION: select the node among the ones related to t=0 which satisfies the feasibility
+		boolean[] isFeasible0 = new boolean[nPolicy];
+		Node[] nodes0 = stageNodes;
+		parallelFor(nPolicy, (mask)->isFeasible0[mask] = nodes0[mask].isFeasible());  // parallel for each node
+		ArrayList<Node> t_0_feasibleNodes = new ArrayList<Node>();
+		for(int mask=0;mask<nPolicy;mask++) {
+			if(isFeasible0[mask]) t_0_feasibleNodes.add(nodes0[mask]);
+		}
+		report(0, t_0_feasibleNodes.size(), t_0_feasibleNodes.size(), nPolicy - t_0_feasibleNodes.size(), stageStart, false);
+		
+		// ITERATIONS: each step is one parallel pass over the nodes of the stage
+		for(int t=1;t<nTBar;t++) {
 			
-			// computes and returns capacity usages for each scenario
+			stageStart = System.nanoTime();
+			ArrayList<Node> fromNodes = new ArrayList<Node>();
+			if(t==1) fromNodes.addAll(t_0_feasibleNodes);
+			else {
+				for(Node node2: stageNodes) {
+					if(node2 != null) fromNodes.add(node2);
+				}
+			}
+			if(isStopped() || fromNodes.isEmpty()) {
+				completeGreedily(t, fromNodes);
+				break;
+			}
 			
-			double[] usage = new double[nScenario];
-			scenarioIndexes.parallelStream().forEach((l)->{  // parallel for each scenario
-					double use = 0;
-					for(int i=0;i<nSBar;i++) {
-						use += X_c[l][i];
-					}
-					usage[l] = problem.nPop * use;
+			// PROPAGATION and ARCS: the successor occupancy of each reachable from-node is computed once per stage,
+			// then its feasible successors are enumerated and the best predecessor of each to-node is kept
+			round++;
+			allEvaluators.clear();
+			int stage = t;
+			boolean isDone = evaluateStage(fromNodes, (from, to, lo, hi, V, Z_next)->{
+				ArcEvaluator evaluator = evaluators.get();
+				for(int k=from;k<to;k++) {
+					if(isStopped()) return false;
+					evaluator.evaluate(fromNodes.get(k), k, stage, k-from, V, (k-from)*(hi-lo), lo, hi);
+				}
+				return true;
 			});
+			if(!isDone) {
+				completeGreedily(t, fromNodes);
+				break;
+			}
+			double[] bestValue = new double[nPolicy];
+			int[] bestIndex = new int[nPolicy];
+			mergeEvaluators(bestValue, bestIndex);
 			
-			return usage;
-		}
-
-		public boolean isFeasible() {
-			
-			// checks whether the stage policy is feasible or not
+			// NODES: the reached to-nodes take a slot and the occupancy carried by the arc from their best predecessor
+			Node[] timeNodes = new Node[nPolicy];
+			Arena arena = new Arena(fromNodes.size());
+			int[] previous = new int[nPolicy];
+			ArrayList<Node> reached = new ArrayList<Node>();
+			ArrayList<Node> reachedFrom = new ArrayList<Node>();
+			for(int mask=0;mask<nPolicy;mask++) {
+				if(bestIndex[mask] < 0) {
+					previous[mask] = -1;
+					continue;
+				}
+				else {
+					Node from = fromNodes.get(bestIndex[mask]);
+					Node node = new Node(t, mask, arena);
+					node.value = bestValue[mask];
+					node.makeDefault();
+					timeNodes[mask] = node;
+					previous[mask] = from.pi;
+					reached.add(node);
+					reachedFrom.add(from);
+				}
+			}
+			setOccupancyMeasures(reached, reachedFrom);
 			
-			double[] usages = getCapacityUsage();
-			boolean flag = true;
-			for(int i=0;i<nScenario;i++) {
-				if(usages[i] > problem.capacity[to.t]) {
-					flag = false;
-					break;
+			// the stage t-1 is dropped together with its arena; only the back-pointers are kept
+			predecessor[t] = previous;
+			stageNodes = timeNodes;
+			stageArena = arena;
+			long[] count = countArcs();
+			report(t, reached.size(), count[0], count[1], stageStart, false);
+		}
+		
+		// GET OBJ VALUE
+		for(Node node: stageNodes) {
+			if (node != null && node.value > totalLength) totalLength = node.value;
+		}
+		totalLength /= totalWeight;
+		elapsedTime = (System.nanoTime() - startTime)/1000000000;  // in terms of seconds
+	}
+	
+	public static class Progress{
+		
+		// what is done in a stage, reported to the ProgressListener once the stage is done
+		
+		public int t;               // stage
+		public int nNode;           // number of nodes kept
+		public long nArc;           // number of feasible arcs into the stage evaluated, the feasible policies in t=0
+		public long nPruned;        // number of arcs into the stage found to violate the capacity, the infeasible policies in t=0
+		public double stageTime;    // wall time of the stage in seconds
+		public double elapsedTime;  // wall time of the run so far in seconds
+		public boolean isGreedy;    // whether the stage is completed greedily after the run stopped
+	}
+	
+	public interface ProgressListener{
+		void stageDone(Progress progress);
+	}
+	
+	void report(int t, int nNode, long nArc, long nPruned, double stageStart, boolean isGreedy) {
+		if(listener == null) return;
+		double now = System.nanoTime();
+		Progress progress = new Progress();
+		progress.t = t;
+		progress.nNode = nNode;
+		progress.nArc = nArc;
+		progress.nPruned = nPruned;
+		progress.stageTime = (now - stageStart)/1000000000;
+		progress.elapsedTime = (now - startTime)/1000000000;
+		progress.isGreedy = isGreedy;
+		listener.stageDone(progress);
+	}
+	
+	boolean isStopped() {
+		
+		// whether the budget of the run is used up
+		
+		return (cancel != null && cancel.get()) || System.nanoTime() > deadline;
+	}
+	
+	long[] countArcs() {
+		
+		// the arcs visited and pruned by the evaluators used in this round
+		
+		long[] count = new long[2];
+		synchronized(allEvaluators) {
+			for(ArcEvaluator evaluator: allEvaluators) {
+				if(evaluator.round != round) continue;
+				count[0] += evaluator.nArc;
+				count[1] += evaluator.nPruned;
+			}
+		}
+		return count;
+	}
+	
+	void completeGreedily(int t, List<Node> fromNodes) {
+		
+		/*
+		 *  completes the path of the best node of stage t-1 among fromNodes up to the last stage, one node per stage
+		 *  (see getGreedyPolicy). the nodes and back-pointers are stored as in the mode of the run, thus setPath
+		 *  recovers the whole path. if fromNodes is empty, the path starts over from acting in no state in t=0,
+		 *  which uses no capacity, and horizon is 0
+		 */
+		
+		horizon = t;
+		Node from = null;
+		int index = -1;
+		for(int k=0;k<fromNodes.size();k++) {
+			if(from == null || fromNodes.get(k).value > from.value) {
+				from = fromNodes.get(k);
+				index = k;
+			}
+		}
+		if(from == null) {
+			horizon = 0;
+			t = 1;
+			from = new Node(0, 0, new Arena(1));
+			from.initOccupancyMeasure();
+			index = 0;
+			if(beamWidth > 0) {
+				beamPolicies[0] = new int[] {0};
+				stageNodes = new Node[] {from};
+			}else {
+				stageNodes = new Node[nPolicy];
+				stageNodes[0] = from;
+			}
+			stageArena = from.arena();
+		}
+		
+		// the successor occupancy of the path is computed node by node, in arenas of one node
+		from = from.detach();
+		for(int s=t;s<nTBar;s++) {
+			double stageStart = System.nanoTime();
+			from.arena().allocateSuccessors();
+			from.propagate();
+			long[] count = new long[2];
+			int mask = getGreedyPolicy(from, s, count);
+			Node node = new Node(s, mask, new Arena(1));
+			node.value = from.value + from.getArcLength(mask);
+			node.makeDefault();
+			node.setOccupancyMeasures(from);
+			if(beamWidth > 0) {
+				beamPolicies[s] = new int[] {mask};
+				beamPrevious[s] = new int[] {index};
+				stageNodes = new Node[] {node};
+			}else {
+				predecessor[s] = new int[nPolicy];
+				Arrays.fill(predecessor[s], -1);
+				predecessor[s][mask] = from.pi;
+				stageNodes = new Node[nPolicy];
+				stageNodes[mask] = node;
+			}
+			stageArena = node.arena();
+			report(s, 1, count[0], count[1], stageStart, true);
+			from = node;
+			index = 0;
+		}
+	}
+	
+	int getGreedyPolicy(Node from, int t, long[] count) {
+		
+		// the successor of from in stage t acts in the states with a positive gain C[1][j] - C[0][j] of the arc length,
+		// from the highest gain on, as long as the capacity holds in every scenario. acting in no state is always
+		// feasible. count[0] and count[1] are incremented by the number of feasible and infeasible masks tried
+		
+		Arena arena = from.arena();
+		int cBase = from.slot*2*nSBar;
+		Integer[] states = new Integer[nSBar];
+		for(int j=0;j<nSBar;j++) states[j] = j;
+		Arrays.sort(states, (a, b)->Double.compare(arena.C[cBase+nSBar+b] - arena.C[cBase+b], arena.C[cBase+nSBar+a] - arena.C[cBase+a]));
+		int mask = 0;
+		for(int j: states) {
+			if(arena.C[cBase+nSBar+j] - arena.C[cBase+j] <= 0) break;
+			if(from.canReach(mask | (1 << j), t)) {
+				mask |= 1 << j;
+				count[0]++;
+			}else {
+				count[1]++;
+			}
+		}
+		return mask;
+	}
+	
+	public interface RangeBody{
+		
+		// run for the from-nodes [from, to) of a range and the scenarios [lo, hi) of a block (see forEachBlock).
+		// returns false if the range is left unfinished
+		boolean accept(int from, int to, int lo, int hi, double[] V, double[] Z_next);
+	}
+	
+	class Successors{
+		
+		// successor occupancy of a range of nodes for a block of scenarios, one per thread (see forEachBlock)
+		
+		double [] V;
+		double [] Z_next;
+		
+		void allocate(int nRow) {
+			if(Z_next == null || Z_next.length < nRow) {
+				V = new double[nRow*nSBar];
+				Z_next = new double[nRow];
+			}
+		}
+	}
+	
+	boolean forEachBlock(List<Node> nodes, boolean isBudgeted, RangeBody body) {
+		
+		/*
+		 *  one parallel pass over the nodes of an arena, in ranges of at most Kernels.BLOCK consecutive nodes:
+		 *  i.   the scenarios of a range are taken in blocks of scenarioBlock, in increasing order. the successor
+		 *       occupancy of the range is computed for a block (see propagateBlock), then body is run for it.
+		 *       node k and scenario l are at v = (k-from)*(hi-lo) + l-lo, in V[v*nSBar...] and Z_next[v]
+		 *  ii.  Thus, the successor occupancy of a stage is never kept as a whole: a thread holds the one of
+		 *       Kernels.BLOCK nodes and scenarioBlock scenarios at a time. the scenarios themselves are still read
+		 *       through problem.scenarios (or its tensor), not from a ScenarioSource as in PolicyEvaluator
+		 *  iii. if isBudgeted, returns false once the budget of the run is used up before every range is done.
+		 *       it also returns false if body leaves a range unfinished
+		 */
+		
+		int n = nodes.size();
+		if(n == 0) return true;
+		Arena arena = nodes.get(0).arena();
+		int[] slots = new int[n];
+		for(int k=0;k<n;k++) slots[k] = nodes.get(k).slot;
+		
+		int nRange = Math.min(n, Math.max(8*nThreads, (n + Kernels.BLOCK - 1) / Kernels.BLOCK));
+		int nBlock = Math.min(scenarioBlock, nScenario);
+		boolean[] isSkipped = new boolean[1];
+		parallelFor(nRange, (r)->{  // parallel for each range of nodes
+			int from = (int) ((long) r * n / nRange);
+			int to = (int) ((long) (r+1) * n / nRange);
+			Successors buffer = successors.get();
+			buffer.allocate((to-from)*nBlock);
+			for(int lo=0;lo<nScenario;lo+=nBlock) {
+				int hi = Math.min(lo+nBlock, nScenario);
+				if(isBudgeted && isStopped()) {
+					isSkipped[0] = true;
+					return;
+				}
+				propagateBlock(arena, slots, from, to, lo, hi, buffer.V, buffer.Z_next);
+				if(!body.accept(from, to, lo, hi, buffer.V, buffer.Z_next)) {
+					isSkipped[0] = true;
+					return;
 				}
 			}
-			return flag;
+		});
+		return !isSkipped[0];
+	}
+	
+	void propagateBlock(Arena arena, int[] slots, int from, int to, int lo, int hi, double[] V, double[] Z_next) {
+		
+		// successor occupancy of the nodes slots[from...to) of the arena in the scenarios [lo, hi), laid out as in
+		// forEachBlock. batched propagation: for each scenario, the occupancy of the nodes is multiplied by the
+		// transition matrices at once (see Kernels.propagateBatch)
+		
+		int nBlock = hi-lo;
+		if(!isBatched) {
+			for(int k=from;k<to;k++) {
+				for(int l=lo;l<hi;l++) {
+					int v = (k-from)*nBlock + l-lo;
+					Z_next[v] = arena.Z[slots[k]*nScenario+l] + kernels.propagate(l, arena.X_n, arena.X_c, arena.offset(slots[k], l), V, v*nSBar);
+				}
+			}
+			return;
+		}
+		for(int l=lo;l<hi;l++) {
+			kernels.propagateBatch(l, slots, from, to, arena.X_n, arena.X_c, arena.Z, V, Z_next, nBlock, l-lo);
 		}
+	}
 	
+	boolean evaluateStage(List<Node> fromNodes, RangeBody arcs) {
+		
+		// one pass over the from-nodes of a stage (see forEachBlock): the coefficients of the arcs are accumulated
+		// block by block, then arcs is run for the block. Thus, the propagation and the arcs of a stage share one
+		// barrier. returns false if the budget of the run is used up before every node is done
+		
+		if(fromNodes.isEmpty()) return true;
+		fromNodes.get(0).arena().allocateCoefficients();
+		return forEachBlock(fromNodes, true, (from, to, lo, hi, V, Z_next)->{
+			for(int k=from;k<to;k++) fromNodes.get(k).addCoefficients(V, Z_next, (k-from)*(hi-lo), lo, hi);
+			return arcs.accept(from, to, lo, hi, V, Z_next);
+		});
 	}
 	
-	void construct() {
+	void setOccupancyMeasures(List<Node> toNodes, List<Node> fromNodes) {
 		
-		// only nodes are constructed. Arcs will be constructed on the way
-		List<List<Boolean>> x = new ArrayList<List<Boolean>>();
-		List<Boolean> temp =  new ArrayList<Boolean>();
-		temp.add(false);
-		temp.add(true);
-		for(int i=0;i<nSBar;i++) {
-			x.add(temp);
+		// the to-nodes take the measures carried by the arcs from their best predecessors, fromNodes.get(k) for
+		// toNodes.get(k). the successor occupancy is computed again, once per predecessor and block by block as in
+		// evaluateStage, then the obj of the to-nodes follows
+		
+		IdentityHashMap<Node, Integer> group = new IdentityHashMap<Node, Integer>();
+		ArrayList<Node> predecessors = new ArrayList<Node>();
+		for(Node from: fromNodes) {
+			if(group.containsKey(from)) continue;
+			group.put(from, predecessors.size());
+			predecessors.add(from);
 		}
-		List<List<Boolean>> combinations = cartesianProduct(x);
-		for(int t=0;t<nTBar;t++) {
-			ArrayList<Node> timeNodes = new ArrayList<Graph.Node>();
-			for(List<Boolean> c: combinations) {
-				boolean[] pi = new boolean[nSBar];
-				for(int i=0;i<nSBar;i++) {
-					pi[i] = c.get(i);
+		int nGroup = predecessors.size();
+		int[] start = new int[nGroup+1];  // the to-nodes of predecessor g are members[start[g]...start[g+1])
+		int[] members = new int[toNodes.size()];
+		for(Node from: fromNodes) start[group.get(from)+1]++;
+		for(int g=0;g<nGroup;g++) start[g+1] += start[g];
+		int[] next = Arrays.copyOf(start, nGroup);
+		for(int k=0;k<toNodes.size();k++) members[next[group.get(fromNodes.get(k))]++] = k;
+		
+		forEachBlock(predecessors, false, (from, to, lo, hi, V, Z_next)->{
+			for(int g=from;g<to;g++) {
+				for(int e=start[g];e<start[g+1];e++) {
+					toNodes.get(members[e]).setOccupancyMeasures(V, Z_next, (g-from)*(hi-lo), lo, hi);
 				}
-				Node curr = new Node(t, pi);
-				timeNodes.add(curr);
 			}
-			tNodeMap.put(t, timeNodes);
+			return true;
+		});
+		parallelFor(toNodes.size(), (k)->toNodes.get(k).setObj());  // parallel for each to-node
+	}
+	
+	void setBatched(boolean isBatched) {
+		this.isBatched = isBatched;
+	}
+	
+	void setScenarioBlock(int scenarioBlock) {
+		this.scenarioBlock = Math.max(1, scenarioBlock);
+	}
+	
+	@Override
+	public void close() {
+		
+		// shuts the pool down once the graph is no longer run; the results are kept
+		
+		pool.shutdown();
+		allEvaluators.clear();
+	}
+	
+	void mergeEvaluators(double[] bestValue, int[] bestIndex) {
+		
+		// collects the best predecessor of each to-policy over the evaluators used in this round
+		
+		ArrayList<ArcEvaluator> used = new ArrayList<ArcEvaluator>();
+		synchronized(allEvaluators) {
+			for(ArcEvaluator evaluator: allEvaluators) {
+				if(evaluator.round == round) used.add(evaluator);
+			}
 		}
+		parallelFor(nPolicy, (mask)->{  // parallel for each to-policy
+			int index = -1;
+			double value = 0;
+			for(ArcEvaluator evaluator: used) {
+				int k = evaluator.bestIndex[mask];
+				if(k < 0) continue;
+				double val = evaluator.bestValue[mask];
+				if(index < 0 || val > value || (val == value && k < index)) {
+					index = k;
+					value = val;
+				}
+			}
+			bestIndex[mask] = index;
+			bestValue[mask] = value;
+		});
 	}
 	
-	void runADP() {
+	void setBeam(int beamWidth, int nFlips) {
 		
-		double startTime = System.nanoTime();
+		// beamWidth > 0 switches to the beam mode, beamWidth = 0 switches back to the enumeration of all policies
 		
-		//INITIALIZATION: select the node among the ones related to t=0 which satisfies the feasibility
-		ArrayList<Node> t_0_feasibleNodes = new ArrayList<Node>();
-		for(Node node: tNodeMap.get(0)) {
-			if(node.isFeasible()) t_0_feasibleNodes.add(node);
+		this.beamWidth = beamWidth;
+		this.nFlips = Math.max(1, Math.min(nFlips, nSBar));
+	}
+	
+	void runBeam() {
+		
+		/*
+		 *  Beam mode of PADP:
+		 *  i.   only the beamWidth nodes with the highest value are kept in each stage
+		 *  ii.  the successors of a node are the policies obtained by flipping at most nFlips states of its own policy
+		 *  iii. the policies of t=0 are found by a local search with the same moves, starting from acting in no state
+		 *  Thus, the work of a stage is bounded by beamWidth * |flipSets| arcs and the memory by beamWidth nodes.
+		 *  The budget of runADP is checked as in the enumeration of all policies.
+		 */
+		
+		double stageStart = System.nanoTime();
+		setFlipSets();
+		beamPolicies = new int[nTBar][];
+		beamPrevious = new int[nTBar][];
+		
+		//INITIALIZATION
+		int[] policies0 = getInitialBeam();
+		Arena arena0 = new Arena(policies0.length);
+		Node[] nodes0 = new Node[policies0.length];
+		for(int k=0;k<policies0.length;k++) {
+			nodes0[k] = new Node(0, policies0[k], arena0);
 		}
+		parallelFor(nodes0.length, (k)->nodes0[k].initOccupancyMeasure());  // parallel for each node
+		beamPolicies[0] = policies0;
+		stageNodes = nodes0;
+		stageArena = arena0;
+		report(0, policies0.length, policies0.length, 0, stageStart, false);
 		
-		// ITERATIONS:
+		// ITERATIONS: the arcs of from-node k are k*nSlot+m, m<nMove is the move of flipSets[m] and m=nMove is the
+		// arc into acting in no state, which is only taken if no move of any from-node is feasible
+		int nMove = flipSets.length;
+		int nSlot = nMove+1;
 		for(int t=1;t<nTBar;t++) {
-			for(Node node: tNodeMap.get(t)) {
-				ArrayList<Arc> arcs = new ArrayList<Arc>();
-				if(t==1) {
-					for(Node node2: t_0_feasibleNodes) {
-						Arc candidateArc = new Arc(node2, node);
-						if (candidateArc.isFeasible()) arcs.add(candidateArc);
-					}
-				}else {
-					for(Node node2: tNodeMap.get(t-1)) {
-						if(node2.previous != null) {
-							Arc candidateArc = new Arc(node2, node);
-							if (candidateArc.isFeasible()) arcs.add(candidateArc);
+			
+			stageStart = System.nanoTime();
+			Node[] fromNodes = stageNodes;
+			int nFrom = fromNodes.length;
+			if(isStopped() || nFrom == 0) {
+				completeGreedily(t, Arrays.asList(fromNodes));
+				break;
+			}
+			
+			// PROPAGATION and ARCS: the neighborhood of each from-node
+			int stage = t;
+			boolean[] isFeasible = new boolean[nFrom*nSlot];
+			double[] values = new double[nFrom*nSlot];
+			int[] masks = new int[nFrom*nSlot];
+			boolean isDone = evaluateStage(Arrays.asList(fromNodes), (from, to, lo, hi, V, Z_next)->{
+				for(int k=from;k<to;k++) {
+					Node node = fromNodes[k];
+					for(int m=0;m<nMove;m++) {
+						int arc = k*nSlot+m;
+						if(lo == 0) {
+							masks[arc] = node.pi ^ flipSets[m];
+							isFeasible[arc] = true;
 						}
+						if(isFeasible[arc] && !node.canReach(masks[arc], stage, V, (k-from)*(hi-lo), lo, hi)) isFeasible[arc] = false;
+						if(isFeasible[arc] && hi == nScenario) values[arc] = node.value + node.getArcLength(masks[arc]);
 					}
 				}
-				if(arcs.size()==0) continue;
-				else {
-					HashMap<Arc, Double> arcMap = new HashMap<Arc, Double>();
-					for(Arc arc: arcs) arcMap.put(arc, arc.from.value + arc.length);
-					Arc bestArc = getBestArc(arcMap);
-					node.value = bestArc.from.value + bestArc.length;
-					node.previous = bestArc.from;
-					node.setOccupancyMeasures(bestArc.X_n, bestArc.X_c, bestArc.Z);
+				return true;
+			});
+			if(!isDone) {
+				completeGreedily(t, Arrays.asList(fromNodes));
+				break;
+			}
+			
+			// the best predecessor of each policy, ties are broken by the lower from-node index
+			HashMap<Integer, Integer> bestArc = new HashMap<Integer, Integer>();
+			long nArc = 0;
+			for(int k=0;k<nFrom;k++) {
+				for(int m=0;m<nMove;m++) {
+					int arc = k*nSlot+m;
+					if(!isFeasible[arc]) continue;
+					nArc++;
+					Integer best = bestArc.get(masks[arc]);
+					if(best == null || values[arc] > values[best]) bestArc.put(masks[arc], arc);
+				}
+			}
+			if(bestArc.isEmpty()) {
+				
+				// no move is feasible: the best from-node is followed by acting in no state, which uses no capacity,
+				// so that the beam is never empty
+				int k = 0;
+				for(int k2=1;k2<nFrom;k2++) {
+					if(fromNodes[k2].value > fromNodes[k].value) k = k2;
 				}
+				int arc = k*nSlot+nMove;
+				masks[arc] = 0;
+				values[arc] = fromNodes[k].value + fromNodes[k].getArcLength(0);
+				bestArc.put(0, arc);
+				nArc++;
+			}
+			
+			// NODES: the beamWidth best policies are kept
+			Integer[] arcs = bestArc.values().toArray(new Integer[0]);
+			Arrays.sort(arcs, (a, b)->{
+				if(values[a] != values[b]) return Double.compare(values[b], values[a]);
+				return Integer.compare(masks[a], masks[b]);
+			});
+			int nKept = Math.min(beamWidth, arcs.length);
+			Arena arena = new Arena(nKept);
+			Node[] timeNodes = new Node[nKept];
+			beamPolicies[t] = new int[nKept];
+			beamPrevious[t] = new int[nKept];
+			for(int k=0;k<nKept;k++) {
+				int arc = arcs[k];
+				Node node = new Node(t, masks[arc], arena);
+				node.value = values[arc];
+				node.makeDefault();
+				timeNodes[k] = node;
+				beamPolicies[t][k] = node.pi;
+				beamPrevious[t][k] = arc/nSlot;
 			}
+			ArrayList<Node> reachedFrom = new ArrayList<Node>();
+			for(int k=0;k<nKept;k++) reachedFrom.add(fromNodes[beamPrevious[t][k]]);
+			setOccupancyMeasures(Arrays.asList(timeNodes), reachedFrom);
+			stageNodes = timeNodes;
+			stageArena = arena;
+			report(t, nKept, nArc, Math.max(0, (long) nFrom*nMove - nArc), stageStart, false);
 		}
 		
 		// GET OBJ VALUE
-		for(Node node: tNodeMap.get(nTBar-1)) {
+		for(Node node: stageNodes) {
 			if (node.value > totalLength) totalLength = node.value;
 		}
-		totalLength /= nScenario;
+		totalLength /= totalWeight;
 		elapsedTime = (System.nanoTime() - startTime)/1000000000;  // in terms of seconds
 	}
 	
-	static Arc getBestArc(HashMap<Arc, Double> arcMap) {
-		Arc bestArc = null;
-		Double bestVal = -1000000.0;
-		for(Arc arc: arcMap.keySet()) {
-			if (arcMap.get(arc)>bestVal) {
-				bestArc = arc;
-				bestVal = arcMap.get(arc);
-			}
-		}
-		return bestArc;
-	}
-	
-	static protected <T> List<List<T>> cartesianProduct(List<List<T>> lists) {
-        List<List<T>> resultLists = new ArrayList<List<T>>();
-        if (lists.size() == 0) {
-            resultLists.add(new ArrayList<T>());
-            return resultLists;
-        } else {
-            List<T> firstList = lists.get(0);
-            List<List<T>> remainingLists = cartesianProduct(lists.subList(1, lists.size()));
-            for (T condition : firstList) {
-                for (List<T> remainingList : remainingLists) {
-                    ArrayList<T> resultList = new ArrayList<T>();
-                    resultList.add(condition);
-                    resultList.addAll(remainingList);
-                    resultLists.add(resultList);
-                }
-            }
-        }
-        return resultLists;
+	void setFlipSets() {
+		
+		// every set of at most nFlips states, the empty set included
+		
+		ArrayList<Integer> sets = new ArrayList<Integer>();
+		addFlipSets(0, 0, 0, sets);
+		flipSets = new int[sets.size()];
+		for(int k=0;k<flipSets.length;k++) flipSets[k] = sets.get(k);
+	}
+	
+	void addFlipSets(int mask, int first, int size, ArrayList<Integer> sets) {
+		sets.add(mask);
+		if(size == nFlips) return;
+		for(int i=first;i<nSBar;i++) {
+			addFlipSets(mask | (1 << i), i+1, size+1, sets);
+		}
+	}
+	
+	int[] getInitialBeam() {
+		
+		// in t=0, the occupancy measures are the priors in every scenario, thus the capacity usage and the
+		// stage reward of a policy are sums over its states. the beam is improved by the moves of flipSets
+		// until it does not change.
+		
+		double[][] c = new double[2][nSBar];
+		for(int l=0;l<nScenario;l++) {
+			for(int i=0;i<nSBar;i++) {
+				c[0][i] += problem.priors[i] * stageCoef[(l*2)*nSBar+i];
+				c[1][i] += problem.priors[i] * stageCoef[(l*2+1)*nSBar+i];
+			}
+		}
+		
+		HashMap<Integer, Double> seen = new HashMap<Integer, Double>();  // feasible policies and their values
+		ArrayList<Integer> beam = new ArrayList<Integer>();
+		beam.add(0);
+		seen.put(0, getValue0(0, c));
+		for(int round=0;round<=nSBar;round++) {
+			for(int mask: beam) {
+				for(int flip: flipSets) {
+					int cand = mask ^ flip;
+					if(seen.containsKey(cand)) continue;
+					double use = 0;
+					for(int i=0;i<nSBar;i++) {
+						if(isSet(cand, i)) use += problem.priors[i];
+					}
+					if(problem.nPop * use > problem.capacity[0]) continue;
+					seen.put(cand, getValue0(cand, c));
+				}
+			}
+			ArrayList<Integer> next = new ArrayList<Integer>(seen.keySet());
+			next.sort((a, b)->{
+				if(!seen.get(a).equals(seen.get(b))) return Double.compare(seen.get(b), seen.get(a));
+				return Integer.compare(a, b);
+			});
+			next = new ArrayList<Integer>(next.subList(0, Math.min(beamWidth, next.size())));
+			if(next.equals(beam)) break;
+			beam = next;
+		}
+		
+		int[] policies = new int[beam.size()];
+		for(int k=0;k<policies.length;k++) policies[k] = beam.get(k);
+		return policies;
+	}
+	
+	double getValue0(int mask, double[][] c) {
+		double val = 0;
+		for(int i=0;i<nSBar;i++) {
+			val += isSet(mask, i) ? c[1][i] : c[0][i];
+		}
+		return val;
+	}
+	
+	static boolean isSet(int mask, int i) {
+		
+		// whether the action is taken in state i under the policy encoded by mask
+		
+		return ((mask >>> i) & 1) == 1;
 	}
 
 	double getObjVal() {
@@ -426,51 +1334,54 @@ public class Graph {
 	void setPath() {
 		
 		// get the best node from t=T-1
-		ArrayList<Node> nodesLast = tNodeMap.get(nTBar-1);
-		Node currentNode = null;
+		int mask = -1;
+		int index = -1;
 		double bestLength = -10000000;
-		for(Node node: nodesLast) {
-			if(node.value > bestLength) {
-				currentNode = node;
+		for(int k=0;k<stageNodes.length;k++) {
+			Node node = stageNodes[k];
+			if(node != null && node.value > bestLength) {
+				mask = node.pi;
+				index = k;
 				bestLength = node.value;
 			}
 		}
-		path.add(currentNode);
 		
-		// start recursions
-		Node prevNode = new Node(currentNode.previous);
-		while(true) {
-			currentNode = new Node(prevNode);
-			path.add(currentNode);
-			if(currentNode.previous ==  null) break;
-			else prevNode = new Node(currentNode.previous);
-		}
+		if(index < 0) throw new IllegalStateException("No node of the last stage is reached, runADP is not run");
 		
-		// reverse it
-		Collections.reverse(path);
+		// follow the back-pointers
+		if(beamWidth > 0) {
+			for(int t=nTBar-1;t>=0;t--) {
+				path[t] = beamPolicies[t][index];
+				if(t > 0) index = beamPrevious[t][index];
+			}
+			return;
+		}
+		for(int t=nTBar-1;t>=0;t--) {
+			path[t] = mask;
+			if(t > 0) mask = predecessor[t][mask];
+		}
 	}
 	
 	void setStrategy() {
 		
 		// be aware of that path is already constructed
 		for(int t=0;t<nTBar;t++) {
-			Node currentNode = path.get(t);
 			for(int i=0;i<nSBar;i++) {
-				if(currentNode.pi[i]) strategy[t][i] = 1;
+				if(isSet(path[t], i)) strategy[t][i] = 1;
 				else strategy[t][i] = 0;
 			}
 		}
 	}
 
 	void displayPath() {
-		for(Node node:path) {
-			System.out.print("time: "+node.t + "---> ");
+		for(int t=0;t<nTBar;t++) {
+			System.out.print("time: "+t + "---> ");
 			for(int i=0;i<nSBar;i++) {
 				if(i < nSBar -1) {
-					if(node.pi[i]) System.out.print("1-");
+					if(isSet(path[t], i)) System.out.print("1-");
 					else System.out.print("0-");
 				}else {
-					if(node.pi[i]) System.out.print("1");
+					if(isSet(path[t], i)) System.out.print("1");
 					else System.out.print("0");
 				}
 			}
@@ -0,0 +1,329 @@
+package version_2;
+
+
+// Libraries
+
+import java.nio.DoubleBuffer;
+
+
+public class Kernels {
+
+	/*
+	 *   i. dense kernels of the occupancy propagation of a scenario l
+	 *   	i.i.   successor occupancy, V[j] = sum_i X_n[i]*P[i][0][j] + X_c[i]*P[i][1][j]
+	 *      i.ii.  absorbed mass,       sum_i X_n[i]*Q[i][0] + X_c[i]*Q[i][1]
+	 *      i.iii. weighted sums,       C[j] += V[j]*w[j]
+	 *
+	 *   ii. backends
+	 *   	ii.i.  SCALAR, reads through the accessors of Problem.MDP; it is the reference implementation
+	 *      ii.ii. BLOCKED, reads the block of a scenario in the layout of ScenarioTensor, where the rows P[i][a][.]
+	 *             are contiguous. The propagation is done as row updates (V += x*P[i]), four rows at a time, so
+	 *             that the innermost loops are unit-stride and free of reductions. It is plain Java: whether the
+	 *             loops run on SIMD instructions is left to the auto-vectorization of the JIT.
+	 *      ii.iii. VECTOR, the row updates of BLOCKED on the Vector API (jdk.incubator.vector, see VectorKernels).
+	 *              it is optional: the class is compiled apart from the rest, which is kept to Java 8, and it is
+	 *              loaded by reflection. if it or the module is absent, VECTOR falls back to BLOCKED
+	 *      ii.iv.  if the problem has a tensor, propagate reads the block in place through absolute gets on its
+	 *              buffer, and propagateBatch copies it into a scratch array of the thread once per batch (VECTOR
+	 *              copies it on every call, as it reads arrays only); otherwise the blocks of all scenarios are
+	 *              copied onto the heap once
+	 *      ii.v.   if P of a scenario is sparse (see Problem.MDP.isSparse), BLOCKED and VECTOR read its compressed rows
+	 *              instead, so that the work scales with the non-zeros. zero occupancies are skipped as well
+	 *
+	 *   iii. the backend is selected by the system property "mmdp.kernel" (scalar, blocked or vector, blocked by
+	 *        default) and it can be switched at runtime through setBackend
+	 *
+	 *   iv. batched propagation stacks the occupancy of many nodes of a scenario into a (nodes x n) matrix and
+	 *       multiplies it by P[.][0][.] and P[.][1][.] of the scenario at once (see propagateBatch)
+	 */
+
+	static final int BLOCK = 64;  // number of rows of a batch processed together, sized to keep them in cache
+
+	public enum Backend { SCALAR, BLOCKED, VECTOR }
+
+	// the row updates of a dense block P starting at p, as in propagateBlocked
+	interface Dense {
+		double propagate(double[] P, int p, int n, int qOffset, double[] X_n, double[] X_c, int base, double[] V, int vBase);
+	}
+
+	static final Dense VECTOR_API = loadVector();  // null if the Vector API is not available
+
+	Problem problem;
+	int n;  // number of non-absorbing states
+	int size;  // number of doubles of a scenario block
+	int qOffset;
+	Backend backend;
+
+	// blocks of all scenarios, scenario l at l*size; null if the problem has a tensor
+	double [] data;
+	ThreadLocal<double[]> scratch;
+
+	public Kernels(Problem problem) {
+		this.problem = problem;
+		n = problem.nState-1;
+		size = ScenarioCache.getScenarioSize(problem.nState);
+		qOffset = n*2*n;
+		scratch = ThreadLocal.withInitial(() -> new double[size]);
+		String kernel = System.getProperty("mmdp.kernel");
+		if("scalar".equalsIgnoreCase(kernel)) setBackend(Backend.SCALAR);
+		else if("vector".equalsIgnoreCase(kernel)) setBackend(Backend.VECTOR);
+		else setBackend(Backend.BLOCKED);
+	}
+
+	static Dense loadVector() {
+
+		// VectorKernels is not compiled with the other classes, and it needs --add-modules jdk.incubator.vector
+
+		try {
+			return (Dense) Class.forName("version_2.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	public void setBackend(Backend backend) {
+
+		// VECTOR falls back to BLOCKED if the Vector API is not available, see getBackend
+
+		if(backend == Backend.VECTOR && VECTOR_API == null) backend = Backend.BLOCKED;
+		this.backend = backend;
+		if(backend != Backend.SCALAR && data == null && problem.tensor == null) layout();
+	}
+
+	public Backend getBackend() {
+		return backend;
+	}
+
+	void layout() {
+
+		// copies the block of every scenario onto the heap
+
+		int nScenario = problem.scenarios.length;
+		double[] block = new double[size];
+		data = new double[nScenario*size];
+		for(int l=0;l<nScenario;l++) {
+			problem.scenarios[l].getScenario(block);
+			System.arraycopy(block, 0, data, l*size, size);
+		}
+	}
+
+	double[] fetch(int l) {
+
+		// the array holding the block of scenario l, the block starts at offset(l)
+
+		if(problem.tensor == null) {
+			if(data == null) layout();
+			return data;
+		}
+		double[] block = scratch.get();
+		problem.tensor.getScenario(l, block);
+		return block;
+	}
+
+	int offset(int l) {
+		return (problem.tensor == null) ? l*size : 0;
+	}
+
+	public double propagate(int l, double[] X_n, double[] X_c, int base, double[] V, int vBase) {
+
+		// writes the successor occupancy of scenario l into V[vBase...vBase+n) and returns the absorbed mass
+
+		if(backend == Backend.VECTOR && !problem.scenarios[l].isSparse()) {
+			return VECTOR_API.propagate(fetch(l), offset(l), n, qOffset, X_n, X_c, base, V, vBase);
+		}
+		if(backend != Backend.SCALAR) {
+			if(problem.scenarios[l].isSparse()) return propagateSparse(l, X_n, X_c, base, V, vBase);
+			if(problem.tensor != null) return propagateMapped(l, X_n, X_c, base, V, vBase);
+			return propagateBlocked(l, X_n, X_c, base, V, vBase);
+		}
+
+		Problem.MDP mdp = problem.scenarios[l];
+		for(int j=0;j<n;j++) {
+			double val = 0;
+			for(int i=0;i<n;i++) {
+				val += X_n[base+i] * mdp.getP(i, 0, j) + X_c[base+i] * mdp.getP(i, 1, j);
+			}
+			V[vBase+j] = val;
+		}
+		double z = 0;
+		for(int i=0;i<n;i++) {
+			z += X_n[base+i] * mdp.getQ(i, 0) + X_c[base+i] * mdp.getQ(i, 1);
+		}
+		return z;
+	}
+
+	double propagateBlocked(int l, double[] X_n, double[] X_c, int base, double[] V, int vBase) {
+
+		double[] P = fetch(l);
+		int p = offset(l);
+		for(int j=0;j<n;j++) V[vBase+j] = 0;
+
+		// four rows of each action at a time, P[i][a][.] starts at p+(i*2+a)*n
+		int i = 0;
+		for(;i+3<n;i+=4) {
+			double xn0 = X_n[base+i], xn1 = X_n[base+i+1], xn2 = X_n[base+i+2], xn3 = X_n[base+i+3];
+			double xc0 = X_c[base+i], xc1 = X_c[base+i+1], xc2 = X_c[base+i+2], xc3 = X_c[base+i+3];
+			int r = p + i*2*n;
+			for(int j=0;j<n;j++) {
+				V[vBase+j] += xn0 * P[r+j] + xn1 * P[r+2*n+j] + xn2 * P[r+4*n+j] + xn3 * P[r+6*n+j]
+							+ xc0 * P[r+n+j] + xc1 * P[r+3*n+j] + xc2 * P[r+5*n+j] + xc3 * P[r+7*n+j];
+			}
+		}
+		for(;i<n;i++) {
+			double xn = X_n[base+i];
+			double xc = X_c[base+i];
+			int r = p + i*2*n;
+			for(int j=0;j<n;j++) {
+				V[vBase+j] += xn * P[r+j] + xc * P[r+n+j];
+			}
+		}
+
+		int q = p + qOffset;
+		double z = 0;
+		for(i=0;i<n;i++) {
+			z += X_n[base+i] * P[q+i*2] + X_c[base+i] * P[q+i*2+1];
+		}
+		return z;
+	}
+
+	double propagateMapped(int l, double[] X_n, double[] X_c, int base, double[] V, int vBase) {
+
+		// as propagateBlocked, reading the block of scenario l in place from the buffer of the tensor
+
+		DoubleBuffer P = problem.tensor.chunks[l / problem.tensor.perChunk];
+		int p = (l % problem.tensor.perChunk)*size;
+		for(int j=0;j<n;j++) V[vBase+j] = 0;
+
+		int i = 0;
+		for(;i+1<n;i+=2) {
+			double xn0 = X_n[base+i], xn1 = X_n[base+i+1];
+			double xc0 = X_c[base+i], xc1 = X_c[base+i+1];
+			int r = p + i*2*n;
+			for(int j=0;j<n;j++) {
+				V[vBase+j] += xn0 * P.get(r+j) + xn1 * P.get(r+2*n+j) + xc0 * P.get(r+n+j) + xc1 * P.get(r+3*n+j);
+			}
+		}
+		for(;i<n;i++) {
+			double xn = X_n[base+i];
+			double xc = X_c[base+i];
+			int r = p + i*2*n;
+			for(int j=0;j<n;j++) {
+				V[vBase+j] += xn * P.get(r+j) + xc * P.get(r+n+j);
+			}
+		}
+
+		int q = p + qOffset;
+		double z = 0;
+		for(i=0;i<n;i++) {
+			z += X_n[base+i] * P.get(q+i*2) + X_c[base+i] * P.get(q+i*2+1);
+		}
+		return z;
+	}
+
+	double propagateSparse(int l, double[] X_n, double[] X_c, int base, double[] V, int vBase) {
+
+		Problem.MDP mdp = problem.scenarios[l];
+		for(int j=0;j<n;j++) V[vBase+j] = 0;
+		for(int a=0;a<2;a++) {
+			double[] X = (a == 0) ? X_n : X_c;
+			int[] rowStart = mdp.rowStart[a];
+			int[] column = mdp.column[a];
+			double[] value = mdp.value[a];
+			for(int i=0;i<n;i++) {
+				double x = X[base+i];
+				if(x == 0) continue;
+				for(int k=rowStart[i];k<rowStart[i+1];k++) {
+					V[vBase+column[k]] += x * value[k];
+				}
+			}
+		}
+
+		double z = 0;
+		for(int i=0;i<n;i++) {
+			z += X_n[base+i] * mdp.getQ(i, 0) + X_c[base+i] * mdp.getQ(i, 1);
+		}
+		return z;
+	}
+
+	public void propagateBatch(int l, int[] slots, int from, int to, double[] X_n, double[] X_c, double[] Z,
+			double[] V, double[] Z_next, int vStride, int vOffset) {
+
+		/*
+		 *  propagates the rows slots[from...to) of scenario l at once. X_n, X_c and Z are laid out as in Graph.Arena:
+		 *  (slot, l, i) at (slot*nScenario + l)*n + i and (slot, l) at slot*nScenario + l. The successor of row k is
+		 *  written at v = (k-from)*vStride + vOffset, into V[v*n...v*n+n) and Z_next[v].
+		 *  The rows are taken in blocks; within a block, every row of P is read once for two nodes at a time.
+		 */
+
+		int nScenario = problem.scenarios.length;
+		if(backend == Backend.SCALAR || problem.scenarios[l].isSparse()) {
+			for(int k=from;k<to;k++) {
+				int v = (k-from)*vStride + vOffset;
+				Z_next[v] = Z[slots[k]*nScenario+l] + propagate(l, X_n, X_c, (slots[k]*nScenario + l)*n, V, v*n);
+			}
+			return;
+		}
+
+		double[] P = fetch(l);
+		int p = offset(l);
+		if(backend == Backend.VECTOR) {
+			for(int k=from;k<to;k++) {
+				int v = (k-from)*vStride + vOffset;
+				Z_next[v] = Z[slots[k]*nScenario+l] + VECTOR_API.propagate(P, p, n, qOffset, X_n, X_c, (slots[k]*nScenario + l)*n, V, v*n);
+			}
+			return;
+		}
+		int q = p + qOffset;
+		for(int b=from;b<to;b+=BLOCK) {
+			int e = Math.min(b+BLOCK, to);
+			for(int k=b;k<e;k++) {
+				int v = ((k-from)*vStride + vOffset)*n;
+				for(int j=0;j<n;j++) V[v+j] = 0;
+			}
+			for(int i=0;i<n;i++) {
+				int r0 = p + i*2*n;
+				int r1 = r0 + n;
+				int k = b;
+				for(;k+1<e;k+=2) {
+					int o0 = (slots[k]*nScenario + l)*n;
+					int o1 = (slots[k+1]*nScenario + l)*n;
+					int v0 = ((k-from)*vStride + vOffset)*n;
+					int v1 = v0 + vStride*n;
+					double xn0 = X_n[o0+i], xc0 = X_c[o0+i];
+					double xn1 = X_n[o1+i], xc1 = X_c[o1+i];
+					for(int j=0;j<n;j++) {
+						double pn = P[r0+j];
+						double pc = P[r1+j];
+						V[v0+j] += xn0 * pn + xc0 * pc;
+						V[v1+j] += xn1 * pn + xc1 * pc;
+					}
+				}
+				for(;k<e;k++) {
+					int o = (slots[k]*nScenario + l)*n;
+					int v = ((k-from)*vStride + vOffset)*n;
+					double xn = X_n[o+i], xc = X_c[o+i];
+					for(int j=0;j<n;j++) {
+						V[v+j] += xn * P[r0+j] + xc * P[r1+j];
+					}
+				}
+			}
+			for(int k=b;k<e;k++) {
+				int base = (slots[k]*nScenario + l)*n;
+				double z = Z[slots[k]*nScenario+l];
+				for(int i=0;i<n;i++) {
+					z += X_n[base+i] * P[q+i*2] + X_c[base+i] * P[q+i*2+1];
+				}
+				Z_next[(k-from)*vStride + vOffset] = z;
+			}
+		}
+	}
+
+	public void accumulate(double[] V, int vBase, double[] w, int wBase, double[] C, int cBase) {
+
+		// C[cBase+j] += V[vBase+j]*w[wBase+j], j=0,...,n-1
+
+		for(int j=0;j<n;j++) {
+			C[cBase+j] += V[vBase+j] * w[wBase+j];
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package version_2;
+
+
+// Libraries
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+
+public class LocalSearch implements AutoCloseable {
+
+	/*
+	 *   i. improves a strategy (dim = nTBar x nSBar), e.g. the one of Graph.setStrategy, by flipping one action
+	 *      pi[t][i] at a time as long as the objective improves and the capacities hold in every scenario
+	 *
+	 *   ii. checkpoints of the incumbent: for each scenario l and stage t, the occupancy before the policy of t
+	 *       splits it, the absorbed mass Z and the reward of the stages before t
+	 *   	ii.i.   occupancy of (l, t) at (l*(nTBar+1)+t)*nSBar, t = nTBar is the occupancy after the last stage
+	 *      ii.ii.  absorbed, prefix and usage of (l, t) at l*(nTBar+1)+t
+	 *      ii.iii. a flip in stage t only changes the stages t, t+1, ..., thus it is evaluated by propagating
+	 *              from the checkpoint of t on. once a flip is accepted, the checkpoints are updated from t on
+	 *
+	 *   iii. the flips are evaluated in parallel
+	 *   	iii.i.  best improvement, every flip is evaluated and the best one is taken
+	 *      iii.ii. first improvement, the flips are evaluated in blocks in the order of (t, i) and the first
+	 *              improving flip of the first block that has one is taken
+	 *
+	 *   iv. the reward and the capacity usage are computed as in PolicyEvaluator, the scenarios are weighted
+	 */
+
+	static final double EPSILON = 1e-9;  // the smallest improvement of the objective that is accepted
+
+	Problem problem;
+	int nScenario;
+	int nTBar;
+	int nSBar;
+	int size;         // number of doubles of a scenario block
+	double[] blocks;  // scenario l at l*size, in the layout of ScenarioTensor
+	double[] weight;
+	double totalWeight;
+
+	// parallel engine, as in Graph
+	int nThreads;
+	ForkJoinPool pool;
+	ThreadLocal<double[]> works;
+
+	// incumbent and its checkpoints
+	int[][] strategy;
+	double objVal;
+	double[] occupancy;
+	double[] absorbed;
+	double[] prefix;
+	double[] usage;
+	boolean[] isPrefixFeasible;  // whether the capacities of the stages before t hold in every scenario
+
+	// result
+	int nFlip;
+	long nEvaluation;
+	double elapsedTime;
+
+	public LocalSearch(Problem problem) {
+		this(problem, Runtime.getRuntime().availableProcessors());
+	}
+
+	public LocalSearch(Problem problem, int nThreads) {
+		this.problem = problem;
+		nScenario = problem.scenarios.length;
+		nTBar = problem.nStage-1;
+		nSBar = problem.nState-1;
+		size = ScenarioCache.getScenarioSize(problem.nState);
+		blocks = new double[nScenario*size];
+		double[] block = new double[size];
+		weight = new double[nScenario];
+		for(int l=0;l<nScenario;l++) {
+			problem.scenarios[l].getScenario(block);
+			System.arraycopy(block, 0, blocks, l*size, size);
+			weight[l] = problem.getWeight(l);
+		}
+		totalWeight = problem.getTotalWeight();
+
+		this.nThreads = nThreads;
+		pool = new ForkJoinPool(nThreads);
+		works = ThreadLocal.withInitial(() -> new double[2*nSBar+3]);
+
+		occupancy = new double[nScenario*(nTBar+1)*nSBar];
+		absorbed = new double[nScenario*(nTBar+1)];
+		prefix = new double[nScenario*(nTBar+1)];
+		usage = new double[nScenario*(nTBar+1)];
+		isPrefixFeasible = new boolean[nTBar+1];
+	}
+
+	public void setIncumbent(Graph graph) {
+
+		// the strategy of the path found by graph.runADP()
+
+		graph.setPath();
+		graph.setStrategy();
+		setIncumbent(graph.strategy);
+	}
+
+	public void setIncumbent(int[][] strategy) {
+
+		// a copy of strategy becomes the incumbent, its checkpoints are computed from t=0
+
+		this.strategy = new int[nTBar][];
+		for(int t=0;t<nTBar;t++) this.strategy[t] = strategy[t].clone();
+		for(int l=0;l<nScenario;l++) {
+			int base = l*(nTBar+1);
+			for(int i=0;i<nSBar;i++) occupancy[base*nSBar+i] = problem.priors[i];
+			absorbed[base] = 0;
+			prefix[base] = 0;
+		}
+		update(0);
+	}
+
+	void update(int from) {
+
+		// recomputes the checkpoints of the stages after from and the objective of the incumbent
+
+		parallelFor(nScenario, (l)->{  // parallel for each scenario
+			double[] work = works.get();
+			int base = l*(nTBar+1);
+			work[2*nSBar] = prefix[base+from];
+			double z = absorbed[base+from];
+			for(int t=from;t<nTBar;t++) {
+				step(l, strategy[t], -1, occupancy, (base+t)*nSBar, z, occupancy, (base+t+1)*nSBar, work);
+				z += work[2*nSBar+1];
+				absorbed[base+t+1] = z;
+				prefix[base+t+1] = work[2*nSBar];
+				usage[base+t] = work[2*nSBar+2];
+			}
+		});
+
+		isPrefixFeasible[0] = true;
+		for(int t=0;t<nTBar;t++) {
+			boolean isFeasible = isPrefixFeasible[t];
+			for(int l=0;l<nScenario && isFeasible;l++) {
+				if(usage[l*(nTBar+1)+t] > problem.capacity[t]) isFeasible = false;
+			}
+			isPrefixFeasible[t+1] = isFeasible;
+		}
+		double total = 0;
+		for(int l=0;l<nScenario;l++) {
+			int base = l*(nTBar+1);
+			total += weight[l] * getReward(l, prefix[base+nTBar], occupancy, (base+nTBar)*nSBar, absorbed[base+nTBar]);
+		}
+		objVal = total / totalWeight;
+	}
+
+	void step(int l, int[] policy, int flip, double[] v, int vBase, double z, double[] next, int nextBase, double[] work) {
+
+		/*
+		 *  one stage of scenario l: the policy (with the action of state flip reversed, if flip >= 0) splits the
+		 *  occupancy v[vBase...vBase+nSBar) and the successor occupancy is written into next[nextBase...). the
+		 *  stage reward is added to work[2*nSBar], the absorbed mass is written into work[2*nSBar+1] and the
+		 *  capacity usage into work[2*nSBar+2]. work[0...2*nSBar) holds the split.
+		 */
+
+		int n = nSBar;
+		int p = l*size;
+		int qOffset = p + n*2*n;
+		int rOffset = qOffset + n*2;
+		double reward = work[2*n];
+		double use = 0;
+		for(int i=0;i<n;i++) {
+			int a = (i == flip) ? 1-policy[i] : policy[i];
+			if(a == 1) {
+				work[i] = 0;
+				work[n+i] = v[vBase+i];
+				use += v[vBase+i];
+			}else {
+				work[i] = v[vBase+i];
+				work[n+i] = 0;
+			}
+			reward += work[i]*blocks[rOffset+i*2] + work[n+i]*blocks[rOffset+i*2+1] + z * problem.rD;
+		}
+
+		for(int j=0;j<n;j++) next[nextBase+j] = 0;
+		double dz = 0;
+		for(int i=0;i<n;i++) {
+			int r = p + i*2*n;
+			for(int j=0;j<n;j++) {
+				next[nextBase+j] += work[i] * blocks[r+j] + work[n+i] * blocks[r+n+j];
+			}
+			dz += work[i] * blocks[qOffset+i*2] + work[n+i] * blocks[qOffset+i*2+1];
+		}
+		work[2*n] = reward;
+		work[2*n+1] = dz;
+		work[2*n+2] = problem.nPop * use;
+	}
+
+	double getReward(int l, double value, double[] v, int vBase, double z) {
+
+		// adds the terminal reward of scenario l to the reward value of its stages
+
+		int ROffset = l*size + nSBar*2*nSBar + 4*nSBar;
+		for(int i=0;i<nSBar;i++) {
+			value += v[vBase+i] * blocks[ROffset+i];
+		}
+		return value + nSBar * z * problem.rD;
+	}
+
+	public double evaluateFlip(int t, int i) {
+
+		// the objective of the incumbent with pi[t][i] flipped, or -infinity if a capacity does not hold
+
+		if(!isPrefixFeasible[t]) return Double.NEGATIVE_INFINITY;
+		double[] work = new double[2*nSBar+3];
+		double[] v = new double[nSBar];
+		double[] next = new double[nSBar];
+		double total = 0;
+		for(int l=0;l<nScenario;l++) {
+			int base = l*(nTBar+1);
+			System.arraycopy(occupancy, (base+t)*nSBar, v, 0, nSBar);
+			double z = absorbed[base+t];
+			work[2*nSBar] = prefix[base+t];
+			for(int s=t;s<nTBar;s++) {
+				step(l, strategy[s], (s == t) ? i : -1, v, 0, z, next, 0, work);
+				if(work[2*nSBar+2] > problem.capacity[s]) return Double.NEGATIVE_INFINITY;
+				z += work[2*nSBar+1];
+				double[] swap = v; v = next; next = swap;
+			}
+			total += weight[l] * getReward(l, work[2*nSBar], v, 0, z);
+		}
+		return total / totalWeight;
+	}
+
+	public void run(boolean isBestImprovement) {
+
+		// flips actions of the incumbent until no flip improves it, be aware of that setIncumbent is already called
+
+		double startTime = System.nanoTime();
+		int nMove = nTBar*nSBar;
+		int block = isBestImprovement ? nMove : Math.max(1, 2*nThreads);
+		double[] values = new double[nMove];
+		while(true) {
+
+			// the flips are evaluated block by block until a block has an improving one
+			int best = -1;
+			for(int from=0;from<nMove && best<0;from+=block) {
+				int first = from;
+				int to = Math.min(from+block, nMove);
+				parallelFor(to-first, (k)->values[first+k] = evaluateFlip((first+k) / nSBar, (first+k) % nSBar));  // parallel for each flip
+				nEvaluation += to-first;
+				for(int k=first;k<to;k++) {
+					if(values[k] > objVal + EPSILON && (best < 0 || values[k] > values[best])) {
+						best = k;
+						if(!isBestImprovement) break;
+					}
+				}
+			}
+			if(best < 0) break;
+
+			// the flip is accepted
+			int t = best / nSBar;
+			int i = best % nSBar;
+			strategy[t][i] = 1 - strategy[t][i];
+			update(t);
+			nFlip++;
+		}
+		elapsedTime = (System.nanoTime() - startTime)/1000000000;  // in terms of seconds
+	}
+
+	void parallelFor(int n, IntConsumer body) {
+
+		// as Graph.parallelFor
+
+		if(n <= 0) return;
+		int grain = Math.max(1, n / (4*nThreads));
+		pool.invoke(new Graph.Block(0, n, grain, body));
+	}
+
+	@Override
+	public void close() {
+
+		// shuts the pool down once the search is no longer run, as Graph.close
+
+		pool.shutdown();
+	}
+
+	public int[][] getStrategy() {
+		return strategy;
+	}
+
+	public double getObjVal() {
+		return objVal;
+	}
+
+	public double getElapsedTime() {
+		return elapsedTime;
+	}
+
+	public int getNumFlips() {
+		return nFlip;
+	}
+
+	public long getNumEvaluations() {
+		return nEvaluation;
+	}
+}
@@ -2,9 +2,23 @@ package version_2;
 
 //Libraries
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import ilog.concert.IloException;
+import ilog.concert.IloLPMatrix;
 import ilog.concert.IloLinearNumExpr;
 import ilog.concert.IloNumVar;
+import ilog.concert.IloNumVarType;
+import ilog.concert.IloRange;
 import ilog.cplex.IloCplex;
 import version_2.Problem.MDP;
 
@@ -25,10 +39,45 @@ public class MIP {
 	IloNumVar [][] Y;
     IloNumVar [][] Z;
 
+	// bulk construction (see build): the columns in an LP matrix, pi first and then X, Z and Y of each scenario
+	static final boolean IS_NAMED = Boolean.getBoolean("mmdp.names");  // whether the bulk model is named, for debugging
+	static final int BENDERS_OFF = -1;           // the value of IloCplex.Param.Benders.Strategy without decomposition
+	static final double NO_TIME_LIMIT = 1e75;    // the default of IloCplex.Param.TimeLimit
+	boolean isBulk;
+	int nThreads;
+	IloLPMatrix lp;
+	IloNumVar [] columns;
+	int nScenarioColumn;  // number of columns of a scenario
+	
+	// explicit Benders decomposition (see solveBenders): the master has pi and theta only
+	IloNumVar theta;
+	BendersSubproblem subproblem;
+	
+	// warm start (see setStart) and a PADP run alongside the solver whose strategy is posted as an incumbent
+	int [][] start;
+	Graph graph;
+	AtomicReference<Start> pending;
+	
+	// the model is kept once built (see solve), the rows that updateCapacity and updatePopulation change.
+	// capacity and nPop are the parameters of the model, copies of the ones of problem which are left as they are
+	boolean isBuilt;
+	int [] capacity;
+	int nPop;
+	IloRange [] capacityRows;  // the capacity of stage t in scenario s at s*nTBar+t
+	int [] capacityIndex;      // their indexes in the LP matrix, if the model is built in bulk
+	IloRange [] valid1Rows;    // the valid inequality of stage t in scenario s at s*nStage+t, if it is added
+	IloRange [] valid2Rows;    // the valid inequality of scenario s, if it is added
+	boolean hasValid1;
+	boolean hasValid2;
+	int [][] incumbent;        // pi of the last solution, the warm start of the next solve
+	
     // fill after the optimal solution is found
     double objVal;
-	double elapsedTime;
+	double elapsedTime;  // buildTime + solveTime
+	double buildTime;
+	double solveTime;
 	double relativeGap;
+	boolean isSolved;
 	
 	int [][] policy; 
 	
@@ -45,6 +94,22 @@ public class MIP {
 		Z = new IloNumVar[problem.scenarios.length][problem.nStage];
 		
 		policy = new int[problem.nStage-1][problem.nState-1];
+		isBulk = true;
+		nThreads = Runtime.getRuntime().availableProcessors();
+		nScenarioColumn = (problem.nStage-1)*(problem.nState-1)*2 + problem.nStage + problem.nState-1;
+		pending = new AtomicReference<Start>();
+		capacity = problem.capacity.clone();
+		nPop = problem.nPop;
+		capacityRows = new IloRange[problem.scenarios.length*(problem.nStage-1)];
+		valid1Rows = new IloRange[problem.scenarios.length*problem.nStage];
+		valid2Rows = new IloRange[problem.scenarios.length];
+	}
+	
+	public void setBulk(boolean isBulk) {
+		
+		// isBulk = false builds the model term by term, with named variables (see solve)
+		
+		this.isBulk = isBulk;
 	}
 	
 	public void defineFirstStageVariables() throws IloException{
@@ -102,7 +167,7 @@ public class MIP {
 
 		for(int s=0;s<problem.scenarios.length;s++){
 			for(int t=1;t<problem.nStage;t++){
-				objTerms.addTerm(Z[s][t], problem.rD);
+				objTerms.addTerm(Z[s][t], problem.getWeight(s) * problem.rD);
 			}
 		}
 
@@ -111,8 +176,8 @@ public class MIP {
 			MDP mdp = problem.scenarios[s];
 			for(int t=0;t<problem.nStage-1;t++){
 				for(int i=0;i<problem.nState-1;i++){
-					objTerms.addTerm(X[s][t][i][0], mdp.r[i][0]);
-					objTerms.addTerm(X[s][t][i][1], mdp.r[i][1]);
+					objTerms.addTerm(X[s][t][i][0], problem.getWeight(s) * mdp.getr(i, 0));
+					objTerms.addTerm(X[s][t][i][1], problem.getWeight(s) * mdp.getr(i, 1));
 				}
 			}
 		}
@@ -120,11 +185,11 @@ public class MIP {
 		for(int s=0;s<problem.scenarios.length;s++){
 			MDP mdp = problem.scenarios[s];
 			for(int i=0;i<problem.nState-1;i++){
-				objTerms.addTerm(Y[s][i], mdp.R[i]);
+				objTerms.addTerm(Y[s][i], problem.getWeight(s) * mdp.getR(i));
 			}
 		}
 
-		// be aware of that we omit the constant 'n/L'
+		// be aware of that we omit the constant 'n/L'. the terms of scenario s are multiplied by its weight
 		cplex.addMaximize(objTerms);
 	}
 
@@ -145,12 +210,9 @@ public class MIP {
 		for(int s=0;s<problem.scenarios.length;s++){
 			MDP mdp = problem.scenarios[s];
 			for(int t=1;t<problem.nStage-1;t++){
+				IloLinearNumExpr[] inFlows = getInFlows(s, mdp, t-1);
 				for(int j=0;j<problem.nState-1;j++){
-					IloLinearNumExpr in =cplex.linearNumExpr();
-					for(int i=0;i<problem.nState-1;i++){
-						in.addTerm(X[s][t-1][i][0], mdp.P[i][0][j]);
-						in.addTerm(X[s][t-1][i][1], mdp.P[i][1][j]);
-					}
+					IloLinearNumExpr in = inFlows[j];
 					IloLinearNumExpr out =cplex.linearNumExpr();
 					out.addTerm(X[s][t][j][0], 1.0);
 					out.addTerm(X[s][t][j][1], 1.0);
@@ -169,8 +231,8 @@ public class MIP {
 			for(int t=1;t<problem.nStage;t++){
 				IloLinearNumExpr in =cplex.linearNumExpr();
 				for(int i=0;i<problem.nState-1;i++){
-					in.addTerm(X[s][t-1][i][0], mdp.Q[i][0]);
-					in.addTerm(X[s][t-1][i][1], mdp.Q[i][1]);
+					in.addTerm(X[s][t-1][i][0], mdp.getQ(i, 0));
+					in.addTerm(X[s][t-1][i][1], mdp.getQ(i, 1));
 				}
 				in.addTerm(Z[s][t-1], 1.0);
 				cplex.addEq(in, Z[s][t]);
@@ -182,15 +244,42 @@ public class MIP {
 		
 		for(int s=0;s<problem.scenarios.length;s++){
 			MDP mdp = problem.scenarios[s];
+			IloLinearNumExpr[] inFlows = getInFlows(s, mdp, problem.nStage-2);
 			for(int j=0;j<problem.nState-1;j++){
-				IloLinearNumExpr in =cplex.linearNumExpr();
-				for(int i=0;i<problem.nState-1;i++){
-					in.addTerm(X[s][problem.nStage-2][i][0], mdp.P[i][0][j]);
-					in.addTerm(X[s][problem.nStage-2][i][1], mdp.P[i][1][j]);
+				cplex.addEq(inFlows[j], Y[s][j]);
+			}
+		}
+	}
+	
+	IloLinearNumExpr[] getInFlows(int s, MDP mdp, int t) throws IloException{
+		
+		// the flow into each state j after stage t, sum_i X[s][t][i][0]*P[i][0][j] + X[s][t][i][1]*P[i][1][j].
+		// only the non-zero terms are added; if P is sparse, they are read row by row from its non-zeros
+		
+		int n = problem.nState-1;
+		IloLinearNumExpr[] in = new IloLinearNumExpr[n];
+		for(int j=0;j<n;j++){
+			in[j] = cplex.linearNumExpr();
+		}
+		if(!mdp.isSparse()){
+			for(int j=0;j<n;j++){
+				for(int i=0;i<n;i++){
+					for(int a=0;a<2;a++){
+						double p = mdp.getP(i, a, j);
+						if(p != 0) in[j].addTerm(X[s][t][i][a], p);
+					}
 				}
-				cplex.addEq(in, Y[s][j]);
 			}
+			return in;
 		}
+		for(int i=0;i<n;i++){
+			for(int a=0;a<2;a++){
+				for(int k=mdp.rowStart[a][i];k<mdp.rowStart[a][i+1];k++){
+					in[mdp.column[a][k]].addTerm(X[s][t][i][a], mdp.value[a][k]);
+				}
+			}
+		}
+		return in;
 	}
 	
 	public void setCapacityConstraint() throws IloException{
@@ -199,9 +288,9 @@ public class MIP {
 			for(int s=0;s<problem.scenarios.length;s++){
 				IloLinearNumExpr expectedUse = cplex.linearNumExpr();
 				for(int i=0;i<problem.nState-1;i++){
-					expectedUse.addTerm(X[s][t][i][1], problem.nPop);
+					expectedUse.addTerm(X[s][t][i][1], nPop);
 				}
-				cplex.addLe(expectedUse, problem.capacity[t]);
+				capacityRows[s*(problem.nStage-1)+t] = cplex.addLe(expectedUse, capacity[t]);
 			}
 		}
 	}
@@ -237,19 +326,15 @@ public class MIP {
 					}
 					sum.addTerm(Z[s][t], 1.0);
 				}
-				cplex.addEq(sum, 1.0);
+				valid1Rows[s*problem.nStage+t] = cplex.addEq(sum, 1.0);
 			}
 		}
+		hasValid1 = true;
 	}
 
 	public void addValid2() throws IloException{
 		
-		double population = problem.nPop;
-		double totalCap = 0;
-		for(int t=0;t<problem.nStage-1;t++){
-			totalCap += problem.capacity[t];
-		}
-		double rhs = problem.nStage - (totalCap + population) / population;
+		double rhs = getValid2Rhs();
 
 		for(int s=0;s<problem.scenarios.length;s++){
 			IloLinearNumExpr lhs = cplex.linearNumExpr();
@@ -259,41 +344,851 @@ public class MIP {
 					lhs.addTerm(X[s][t][i][0], 1.0);
 				}
 			}
-			cplex.addGe(lhs, rhs);
+			valid2Rows[s] = cplex.addGe(lhs, rhs);
+		}
+		hasValid2 = true;
+	}
+
+	public void build(boolean isValid1, boolean isValid2) throws IloException{
+		
+		/*
+		 *   i. bulk construction of the same model, without names unless -Dmmdp.names=true
+		 *   	i.i.   the columns are created as one array and added to an LP matrix at once: pi, then X, Z and Y of
+		 *             scenario 0, 1, ... (see getX, getZ, getY). pi, X, Y and Z refer to the columns as well
+		 *      i.ii.  the rows of a scenario are filled into primitive arrays (see ScenarioRows) by nThreads threads,
+		 *             and added to the matrix in the order of the scenarios. at most 2*nThreads scenarios are
+		 *             filled at a time, thus the arrays of the other scenarios are not in memory
+		 *      i.iii. the objective is one scalar product over the columns
+		 */
+		
+		int nScenario = problem.scenarios.length;
+		int nTBar = problem.nStage-1;
+		int nSBar = problem.nState-1;
+		int nColumn = nTBar*nSBar + nScenario*nScenarioColumn;
+		
+		// columns
+		double[] lb = new double[nColumn];
+		double[] ub = new double[nColumn];
+		IloNumVarType[] types = new IloNumVarType[nColumn];
+		Arrays.fill(ub, 1);
+		Arrays.fill(types, 0, nTBar*nSBar, IloNumVarType.Bool);
+		Arrays.fill(types, nTBar*nSBar, nColumn, IloNumVarType.Float);
+		columns = cplex.numVarArray(nColumn, lb, ub, types);
+		lp = cplex.addLPMatrix();
+		lp.addCols(columns);
+		for(int t=0;t<nTBar;t++){
+			for(int i=0;i<nSBar;i++){
+				pi[t][i] = columns[t*nSBar+i];
+			}
+		}
+		for(int s=0;s<nScenario;s++){
+			for(int t=0;t<nTBar;t++){
+				for(int i=0;i<nSBar;i++){
+					X[s][t][i][0] = columns[getX(s, t, i, 0)];
+					X[s][t][i][1] = columns[getX(s, t, i, 1)];
+				}
+			}
+			for(int t=0;t<problem.nStage;t++){
+				Z[s][t] = columns[getZ(s, t)];
+			}
+			for(int i=0;i<nSBar;i++){
+				Y[s][i] = columns[getY(s, i)];
+			}
+		}
+		
+		// objective, as in setObjectiveFunction
+		double[] obj = new double[nColumn];
+		for(int s=0;s<nScenario;s++){
+			MDP mdp = problem.scenarios[s];
+			double weight = problem.getWeight(s);
+			for(int t=0;t<nTBar;t++){
+				for(int i=0;i<nSBar;i++){
+					obj[getX(s, t, i, 0)] = weight * mdp.getr(i, 0);
+					obj[getX(s, t, i, 1)] = weight * mdp.getr(i, 1);
+				}
+			}
+			for(int t=1;t<problem.nStage;t++){
+				obj[getZ(s, t)] = weight * problem.rD;
+			}
+			for(int i=0;i<nSBar;i++){
+				obj[getY(s, i)] = weight * mdp.getR(i);
+			}
+		}
+		cplex.addMaximize(cplex.scalProd(columns, obj));
+		
+		// rows, scenario by scenario
+		capacityIndex = new int[nScenario*nTBar];
+		int window = 2*nThreads;
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<ScenarioRows>> futures = new ArrayList<Future<ScenarioRows>>();
+			for(int s=0;s<Math.min(window, nScenario);s++){
+				futures.add(submitRows(executor, s, isValid1, isValid2));
+			}
+			for(int s=0;s<nScenario;s++){
+				ScenarioRows rows = futures.get(s).get();
+				futures.set(s, null);
+				if(s+window < nScenario) futures.add(submitRows(executor, s+window, isValid1, isValid2));
+				int first = lp.addRows(rows.lb, rows.ub, rows.ind, rows.val);
+				for(int t=0;t<nTBar;t++){
+					capacityIndex[s*nTBar+t] = first + rows.capacityRow[t];
+					capacityRows[s*nTBar+t] = lp.getRange(capacityIndex[s*nTBar+t]);
+				}
+				if(isValid1){
+					for(int t=0;t<problem.nStage;t++) valid1Rows[s*problem.nStage+t] = lp.getRange(first + rows.valid1Row + t);
+				}
+				if(isValid2) valid2Rows[s] = lp.getRange(first + rows.valid2Row);
+				if(IS_NAMED) {
+					for(int k=0;k<rows.nRow;k++) lp.getRange(first+k).setName(rows.names[k]);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IloException("Building the model is interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IloException(String.valueOf(cause));
+		} finally {
+			executor.shutdownNow();
+		}
+		hasValid1 = isValid1;
+		hasValid2 = isValid2;
+		
+		if(IS_NAMED) {
+			for(int t=0;t<nTBar;t++){
+				for(int i=0;i<nSBar;i++){
+					pi[t][i].setName(ModelWriter.pi(t, i));
+				}
+			}
+			for(int s=0;s<nScenario;s++){
+				for(int t=0;t<nTBar;t++){
+					for(int i=0;i<nSBar;i++){
+						X[s][t][i][0].setName(ModelWriter.X(s, t, i, 0));
+						X[s][t][i][1].setName(ModelWriter.X(s, t, i, 1));
+					}
+				}
+				for(int t=0;t<problem.nStage;t++){
+					Z[s][t].setName(ModelWriter.Z(s, t));
+				}
+				for(int i=0;i<nSBar;i++){
+					Y[s][i].setName(ModelWriter.Y(s, i));
+				}
+			}
+		}
+	}
+	
+	Future<ScenarioRows> submitRows(ExecutorService executor, int s, boolean isValid1, boolean isValid2){
+		return executor.submit(() -> new ScenarioRows(s, isValid1, isValid2));
+	}
+	
+	// indexes of the columns of the bulk model
+	
+	int getX(int s, int t, int i, int a){
+		int nSBar = problem.nState-1;
+		return (problem.nStage-1)*nSBar + s*nScenarioColumn + (t*nSBar+i)*2 + a;
+	}
+	
+	int getZ(int s, int t){
+		int nSBar = problem.nState-1;
+		return (problem.nStage-1)*nSBar + s*nScenarioColumn + (problem.nStage-1)*nSBar*2 + t;
+	}
+	
+	int getY(int s, int i){
+		int nSBar = problem.nState-1;
+		return (problem.nStage-1)*nSBar + s*nScenarioColumn + (problem.nStage-1)*nSBar*2 + problem.nStage + i;
+	}
+	
+	class ScenarioRows{
+		
+		/*
+		 *  the rows of scenario s in primitive arrays, as IloLPMatrix.addRows takes them: the row k is
+		 *  lb[k] <= sum_m val[k][m] * column[ind[k][m]] <= ub[k]. the rows are the ones of setPriorFlows,
+		 *  setIntermediateFlows, setTerminalFlows, setAbsorbingFlows, setCapacityConstraint, linkStages,
+		 *  addValid1 and addValid2, named as in ModelWriter if IS_NAMED
+		 */
+		
+		double [] lb;
+		double [] ub;
+		int [][] ind;
+		double [][] val;
+		String [] names;
+		int nRow;
+		int [] capacityRow;  // the row of the capacity of stage t
+		int valid1Row;       // the row of the valid inequality of t=0, the ones of the later stages follow
+		int valid2Row;
+		
+		ScenarioRows(int s, boolean isValid1, boolean isValid2){
+			
+			int nTBar = problem.nStage-1;
+			int nSBar = problem.nState-1;
+			int size = nSBar + (nTBar-1)*nSBar + nSBar + problem.nStage + nTBar + 2*nTBar*nSBar;
+			if(isValid1) size += problem.nStage;
+			if(isValid2) size += 1;
+			lb = new double[size];
+			ub = new double[size];
+			ind = new int[size][];
+			val = new double[size][];
+			if(IS_NAMED) names = new String[size];
+			nRow = 0;
+			capacityRow = new int[nTBar];
+			MDP mdp = problem.scenarios[s];
+			
+			// the terms of the flow into state j: X[s][t][i][a] of a = in[j][m] % 2, i = in[j][m] / 2 with P[i][a][j] = inVal[j][m]
+			int[][] in = new int[nSBar][];
+			double[][] inVal = new double[nSBar][];
+			setInFlows(mdp, in, inVal);
+			
+			// prior flows
+			for(int i=0;i<nSBar;i++){
+				add(problem.priors[i], problem.priors[i], new int[] {getX(s, 0, i, 0), getX(s, 0, i, 1)}, new double[] {1, 1}, "prior", s, i);
+			}
+			
+			// intermediate and terminal flows
+			for(int t=1;t<problem.nStage;t++){
+				for(int j=0;j<nSBar;j++){
+					int m = in[j].length;
+					boolean isLast = t == problem.nStage-1;
+					int[] index = new int[m + (isLast ? 1 : 2)];
+					double[] coef = new double[index.length];
+					for(int k=0;k<m;k++){
+						index[k] = getX(s, t-1, in[j][k] / 2, in[j][k] % 2);
+						coef[k] = inVal[j][k];
+					}
+					if(isLast){
+						index[m] = getY(s, j);
+						coef[m] = -1;
+						add(0, 0, index, coef, "terminal", s, j);
+					}else{
+						index[m] = getX(s, t, j, 0);
+						index[m+1] = getX(s, t, j, 1);
+						coef[m] = -1;
+						coef[m+1] = -1;
+						add(0, 0, index, coef, "flow", s, t, j);
+					}
+				}
+			}
+			
+			// absorbing flows
+			add(0, 0, new int[] {getZ(s, 0)}, new double[] {1}, "absorb", s, 0);
+			for(int t=1;t<problem.nStage;t++){
+				int[] index = new int[2*nSBar+2];
+				double[] coef = new double[2*nSBar+2];
+				int m = 0;
+				for(int i=0;i<nSBar;i++){
+					for(int a=0;a<2;a++){
+						if(mdp.getQ(i, a) == 0) continue;
+						index[m] = getX(s, t-1, i, a);
+						coef[m++] = mdp.getQ(i, a);
+					}
+				}
+				index[m] = getZ(s, t-1);
+				coef[m++] = 1;
+				index[m] = getZ(s, t);
+				coef[m++] = -1;
+				add(0, 0, Arrays.copyOf(index, m), Arrays.copyOf(coef, m), "absorb", s, t);
+			}
+			
+			// capacity and linking
+			for(int t=0;t<nTBar;t++){
+				int[] index = new int[nSBar];
+				double[] coef = new double[nSBar];
+				for(int i=0;i<nSBar;i++){
+					index[i] = getX(s, t, i, 1);
+					coef[i] = nPop;
+				}
+				capacityRow[t] = nRow;
+				add(Double.NEGATIVE_INFINITY, capacity[t], index, coef, "capacity", s, t);
+				for(int i=0;i<nSBar;i++){
+					add(Double.NEGATIVE_INFINITY, 0, new int[] {getX(s, t, i, 1), t*nSBar+i}, new double[] {1, -1}, "link1", s, t, i);
+					add(Double.NEGATIVE_INFINITY, 1, new int[] {getX(s, t, i, 0), t*nSBar+i}, new double[] {1, 1}, "link0", s, t, i);
+				}
+			}
+			
+			// valid inequalities
+			if(isValid1){
+				valid1Row = nRow;
+				for(int t=0;t<problem.nStage;t++){
+					int[] index = new int[2*nSBar+1];
+					int m = 0;
+					for(int i=0;i<nSBar;i++){
+						if(t < nTBar){
+							index[m++] = getX(s, t, i, 0);
+							index[m++] = getX(s, t, i, 1);
+						}else{
+							index[m++] = getY(s, i);
+						}
+					}
+					if(t > 0) index[m++] = getZ(s, t);
+					double[] coef = new double[m];
+					Arrays.fill(coef, 1);
+					add(1, 1, Arrays.copyOf(index, m), coef, "valid1", s, t);
+				}
+			}
+			if(isValid2){
+				int[] index = new int[nTBar*(nSBar+1)];
+				int m = 0;
+				for(int t=0;t<nTBar;t++){
+					index[m++] = getZ(s, t);
+					for(int i=0;i<nSBar;i++){
+						index[m++] = getX(s, t, i, 0);
+					}
+				}
+				double[] coef = new double[m];
+				Arrays.fill(coef, 1);
+				valid2Row = nRow;
+				add(getValid2Rhs(), Double.POSITIVE_INFINITY, index, coef, "valid2", s);
+			}
+		}
+		
+		void add(double lb, double ub, int[] ind, double[] val, String family, int... indexes){
+			this.lb[nRow] = lb;
+			this.ub[nRow] = ub;
+			this.ind[nRow] = ind;
+			this.val[nRow] = val;
+			if(IS_NAMED) {
+				StringBuilder name = new StringBuilder(family);
+				for(int index: indexes) name.append('_').append(index);
+				names[nRow] = name.toString();
+			}
+			nRow++;
+		}
+		
+		void setInFlows(MDP mdp, int[][] in, double[][] inVal){
+			
+			// the non-zeros of the columns of P, read off the sparse rows if P is sparse
+			
+			int n = problem.nState-1;
+			int[] count = new int[n];
+			for(int i=0;i<n;i++){
+				for(int a=0;a<2;a++){
+					if(mdp.isSparse()){
+						for(int k=mdp.rowStart[a][i];k<mdp.rowStart[a][i+1];k++) count[mdp.column[a][k]]++;
+					}else{
+						for(int j=0;j<n;j++) if(mdp.getP(i, a, j) != 0) count[j]++;
+					}
+				}
+			}
+			for(int j=0;j<n;j++){
+				in[j] = new int[count[j]];
+				inVal[j] = new double[count[j]];
+				count[j] = 0;
+			}
+			for(int i=0;i<n;i++){
+				for(int a=0;a<2;a++){
+					if(mdp.isSparse()){
+						for(int k=mdp.rowStart[a][i];k<mdp.rowStart[a][i+1];k++){
+							int j = mdp.column[a][k];
+							in[j][count[j]] = i*2+a;
+							inVal[j][count[j]++] = mdp.value[a][k];
+						}
+					}else{
+						for(int j=0;j<n;j++){
+							if(mdp.getP(i, a, j) == 0) continue;
+							in[j][count[j]] = i*2+a;
+							inVal[j][count[j]++] = mdp.getP(i, a, j);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	double getValid2Rhs(){
+		
+		// the right-hand side of the valid inequality of Proposition 2.3
+		
+		double totalCap = 0;
+		for(int t=0;t<problem.nStage-1;t++){
+			totalCap += capacity[t];
 		}
+		return problem.nStage - (totalCap + nPop) / nPop;
 	}
 
 	public void solve(boolean isBender, boolean isValid1, boolean isValid2, double timeLim) throws IloException{
 		
 		double startTime = System.nanoTime();
 
-		if (isBender) cplex.setParam(IloCplex.Param.Benders.Strategy, 3);
+		// both are set on every solve, so that a re-solve of the kept model does not inherit them
+		cplex.setParam(IloCplex.Param.Benders.Strategy, isBender ? 3 : BENDERS_OFF);
 
-		if (timeLim>0) cplex.setParam(IloCplex.Param.TimeLimit	, timeLim);
+		cplex.setParam(IloCplex.Param.TimeLimit	, (timeLim>0) ? timeLim : NO_TIME_LIMIT);
 
-		defineFirstStageVariables();
-		defineSecondStageVariables();
-		setObjectiveFunction();
-		setPriorFlows();
-		setIntermediateFlows();
-		setAbsorbingFlows();
-		setTerminalFlows();
-		setCapacityConstraint();
-		linkStages();
+		boolean isKept = isBuilt;
+		if (isKept) {
+			
+			// re-solve of the kept model, from the basis of the last solve
+			cplex.setParam(IloCplex.Param.Advance, 1);
+			updateValidRows(isValid1, isValid2);
+		}
+		else if (isBulk) build(isValid1, isValid2);
+		else {
+			defineFirstStageVariables();
+			defineSecondStageVariables();
+			setObjectiveFunction();
+			setPriorFlows();
+			setIntermediateFlows();
+			setAbsorbingFlows();
+			setTerminalFlows();
+			setCapacityConstraint();
+			linkStages();
 
-		if (isValid1) addValid1();
-		if (isValid2) addValid2();
+			if (isValid1) addValid1();
+			if (isValid2) addValid2();
+		}
+		
+		// the start of the caller (see setStart) and, on the kept model, the incumbent of the last solve are given
+		// as separate MIP starts. either may violate an updated capacity, the solver repairs it then
+		if (isKept) cplex.deleteMIPStarts(0, cplex.getNMIPStarts());
+		IloCplex.MIPStartEffort effort = isKept ? IloCplex.MIPStartEffort.Repair : IloCplex.MIPStartEffort.CheckFeasible;
+		if (start != null) cplex.addMIPStart(getColumns(), getStart(start).values, effort, "start");
+		if (isKept && incumbent != null) cplex.addMIPStart(getColumns(), getStart(incumbent).values, effort, "incumbent");
+		isBuilt = true;
+		double solveStart = System.nanoTime();
+		buildTime = (solveStart - startTime)/1000000000;  // in terms of seconds
 
-		if(cplex.solve()){
-			objVal = cplex.getObjValue() / problem.scenarios.length;  // now, we just ignore "n" instead of "n/L"			
-			elapsedTime = (System.nanoTime() - startTime)/1000000000;  // in terms of seconds			
+		AtomicBoolean cancel = new AtomicBoolean(false);
+		Thread thread = (graph != null) ? startPADP(cancel) : null;
+		isSolved = false;
+		try {
+			isSolved = cplex.solve();
+		} finally {
+			if (thread != null) {
+				cancel.set(true);
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		solveTime = (System.nanoTime() - solveStart)/1000000000;
+		elapsedTime = buildTime + solveTime;
+		if(isSolved){
+			objVal = cplex.getObjValue() / problem.getTotalWeight();  // now, we just ignore "n" instead of "n/L"			
 			relativeGap = cplex.getMIPRelativeGap();
+			setPolicy();
+		}
+	}
+	
+	public void solve(int[][] strategy, boolean isBender, boolean isValid1, boolean isValid2, double timeLim) throws IloException{
+		
+		// solves the model warm started from strategy (dim = nTBar x nSBar), e.g. the one of Graph.setStrategy
+		
+		setStart(strategy);
+		solve(isBender, isValid1, isValid2, timeLim);
+	}
+	
+	public void updateCapacity(int[] capacity) throws IloException{
+		
+		/*
+		 *  sets the capacity of each stage (dim = nTBar) of the model and, if it is built, the right-hand sides of
+		 *  the capacity rows in place. the next solve(...) re-solves the kept model, after the valid inequalities
+		 *  are set again (see updateValidRows). problem is left as it is, thus a PADP run alongside the solver
+		 *  (see setConcurrentPADP) uses the capacity of the problem; its strategy is checked by the solver
+		 */
+		
+		checkKept();
+		if(capacity.length != problem.nStage-1) {
+			throw new IllegalArgumentException("The capacity has " + capacity.length + " stages instead of " + (problem.nStage-1));
+		}
+		this.capacity = capacity.clone();
+		if(!isBuilt) return;
+		int nTBar = problem.nStage-1;
+		for(int s=0;s<problem.scenarios.length;s++){
+			for(int t=0;t<nTBar;t++){
+				capacityRows[s*nTBar+t].setUB(capacity[t]);
+			}
+		}
+	}
+	
+	public void updatePopulation(int nPop) throws IloException{
+		
+		/*
+		 *  sets the number of patients of the model and, if it is built, the coefficients nPop of the capacity rows
+		 *  in place, as updateCapacity. the coefficients of the bulk model are set by one call on the LP matrix
+		 */
+		
+		checkKept();
+		this.nPop = nPop;
+		if(!isBuilt) return;
+		int nTBar = problem.nStage-1;
+		int nSBar = problem.nState-1;
+		int nScenario = problem.scenarios.length;
+		if(lp != null){
+			int[] rowind = new int[nScenario*nTBar*nSBar];
+			int[] colind = new int[rowind.length];
+			double[] val = new double[rowind.length];
+			Arrays.fill(val, nPop);
+			for(int s=0;s<nScenario;s++){
+				for(int t=0;t<nTBar;t++){
+					for(int i=0;i<nSBar;i++){
+						int k = (s*nTBar+t)*nSBar+i;
+						rowind[k] = capacityIndex[s*nTBar+t];
+						colind[k] = getX(s, t, i, 1);
+					}
+				}
+			}
+			lp.setNZs(rowind, colind, val);
+		}else{
+			double[] val = new double[nSBar];
+			IloNumVar[] vars = new IloNumVar[nSBar];
+			Arrays.fill(val, nPop);
+			for(int s=0;s<nScenario;s++){
+				for(int t=0;t<nTBar;t++){
+					for(int i=0;i<nSBar;i++) vars[i] = X[s][t][i][1];
+					cplex.setLinearCoefs(capacityRows[s*nTBar+t], val, vars);
+				}
+			}
+		}
+	}
+	
+	void updateValidRows(boolean isValid1, boolean isValid2) throws IloException{
+		
+		// the valid inequalities of the kept model follow the flags of the solve: the ones asked for are added if
+		// the model has none and their bounds are set again, the right-hand side of Proposition 2.3 with the
+		// current capacity and nPop; the others are relaxed
+		
+		if(isValid1 && !hasValid1) addValid1();
+		if(isValid2 && !hasValid2) addValid2();
+		for(IloRange row: valid1Rows){
+			if(row != null) row.setBounds(isValid1 ? 1 : Double.NEGATIVE_INFINITY, isValid1 ? 1 : Double.POSITIVE_INFINITY);
+		}
+		double rhs = getValid2Rhs();
+		for(IloRange row: valid2Rows){
+			if(row != null) row.setLB(isValid2 ? rhs : Double.NEGATIVE_INFINITY);
+		}
+	}
+	
+	void checkKept() throws IloException{
+		
+		// the master of solveBenders has no capacity rows, its cuts depend on the capacity
+		
+		if(theta != null) throw new IloException("The model of solveBenders cannot be updated");
+	}
+	
+	public class SweepPoint{
+		
+		// the result of one point of a sweep, the parameters are the ones the model is solved with
+		
+		public int[] capacity;
+		public int nPop;
+		public boolean isSolved;
+		public double objVal;       // NaN if no solution is found
+		public double relativeGap;  // NaN if no solution is found
+		public double solveTime;
+		public int[][] policy;      // null if no solution is found
+		
+		SweepPoint(){
+			capacity = MIP.this.capacity.clone();
+			nPop = MIP.this.nPop;
+			this.isSolved = MIP.this.isSolved;
+			objVal = isSolved ? MIP.this.objVal : Double.NaN;
+			relativeGap = isSolved ? MIP.this.relativeGap : Double.NaN;
+			solveTime = MIP.this.solveTime;
+			if(isSolved){
+				policy = new int[problem.nStage-1][];
+				for(int t=0;t<problem.nStage-1;t++) policy[t] = MIP.this.policy[t].clone();
+			}
+		}
+	}
+	
+	public List<SweepPoint> sweep(int[][] capacities, int[] populations, boolean isValid1, boolean isValid2, double timeLim) throws IloException{
+		
+		/*
+		 *  solves the model at each point k of a sweep, with the capacity capacities[k] and the number of patients
+		 *  populations[k]; either array may be null, the parameter is then kept as it is. the model is built once,
+		 *  at the first point, and each point is re-solved from the basis and the incumbent of the previous one,
+		 *  thus the points are solved one after another in the given order
+		 */
+		
+		int nPoint = (capacities != null) ? capacities.length : (populations != null) ? populations.length : 0;
+		if(capacities != null && populations != null && capacities.length != populations.length) {
+			throw new IllegalArgumentException("The sweep has " + capacities.length + " capacities and " + populations.length + " populations");
+		}
+		List<SweepPoint> points = new ArrayList<SweepPoint>(nPoint);
+		for(int k=0;k<nPoint;k++){
+			if(capacities != null) updateCapacity(capacities[k]);
+			if(populations != null) updatePopulation(populations[k]);
+			solve(false, isValid1, isValid2, timeLim);
+			points.add(new SweepPoint());
+		}
+		return points;
+	}
+	
+	public void setStart(int[][] strategy){
+		
+		/*
+		 *  the strategy and the flows it implies in each scenario are given to the solver as a MIP start, thus the
+		 *  solver starts with an incumbent if the strategy is feasible. the start is given on every solve(...) until
+		 *  it is removed by null; on the kept model it is given together with the incumbent of the last solve
+		 */
+		
+		start = strategy;
+	}
+	
+	public void setConcurrentPADP(Graph graph){
+		
+		/*
+		 *  graph.runADP() runs alongside the solver in solve(...) and is cancelled once the solver stops. its strategy
+		 *  and the flows it implies are posted to the solver as a heuristic solution by a callback (see
+		 *  IncumbentCallback), the solver keeps it if it is feasible and better than its incumbent. null turns it off.
+		 *  the callback replaces the one of solveBenders, thus it is only used by solve(...)
+		 */
+		
+		this.graph = graph;
+	}
+	
+	class Start{
+		
+		// values of the columns in the order of getColumns, and their objective value in the terms of the model
+		
+		double [] values;
+		double obj;
+	}
+	
+	Start getStart(int[][] strategy){
+		
+		// the flows implied by the strategy: the occupancy of each scenario is propagated stage by stage
+		
+		int nTBar = problem.nStage-1;
+		int nSBar = problem.nState-1;
+		Start start = new Start();
+		start.values = new double[nTBar*nSBar + problem.scenarios.length*nScenarioColumn];
+		for(int t=0;t<nTBar;t++){
+			for(int i=0;i<nSBar;i++){
+				start.values[t*nSBar+i] = strategy[t][i];
+			}
+		}
+		double[] v = new double[nSBar];
+		double[] next = new double[nSBar];
+		for(int s=0;s<problem.scenarios.length;s++){
+			MDP mdp = problem.scenarios[s];
+			double weight = problem.getWeight(s);
+			double z = 0;
+			for(int i=0;i<nSBar;i++) v[i] = problem.priors[i];
+			for(int t=0;t<nTBar;t++){
+				start.values[getZ(s, t)] = z;
+				if(t > 0) start.obj += weight * problem.rD * z;
+				Arrays.fill(next, 0);
+				for(int i=0;i<nSBar;i++){
+					int a = strategy[t][i];
+					start.values[getX(s, t, i, a)] = v[i];
+					start.obj += weight * mdp.getr(i, a) * v[i];
+					for(int j=0;j<nSBar;j++){
+						next[j] += v[i] * mdp.getP(i, a, j);
+					}
+					z += v[i] * mdp.getQ(i, a);
+				}
+				double[] swap = v; v = next; next = swap;
+			}
+			start.values[getZ(s, nTBar)] = z;
+			if(nTBar > 0) start.obj += weight * problem.rD * z;
+			for(int i=0;i<nSBar;i++){
+				start.values[getY(s, i)] = v[i];
+				start.obj += weight * mdp.getR(i) * v[i];
+			}
+		}
+		return start;
+	}
+	
+	IloNumVar[] getColumns(){
+		
+		// the variables in the order of the columns of the bulk model (see build), whichever way the model is built
+		
+		if(columns != null) return columns;
+		int nTBar = problem.nStage-1;
+		int nSBar = problem.nState-1;
+		IloNumVar[] vars = new IloNumVar[nTBar*nSBar + problem.scenarios.length*nScenarioColumn];
+		for(int t=0;t<nTBar;t++){
+			for(int i=0;i<nSBar;i++){
+				vars[t*nSBar+i] = pi[t][i];
+			}
+		}
+		for(int s=0;s<problem.scenarios.length;s++){
+			for(int t=0;t<nTBar;t++){
+				for(int i=0;i<nSBar;i++){
+					vars[getX(s, t, i, 0)] = X[s][t][i][0];
+					vars[getX(s, t, i, 1)] = X[s][t][i][1];
+				}
+			}
+			for(int t=0;t<problem.nStage;t++){
+				vars[getZ(s, t)] = Z[s][t];
+			}
+			for(int i=0;i<nSBar;i++){
+				vars[getY(s, i)] = Y[s][i];
+			}
+		}
+		return vars;
+	}
+	
+	Thread startPADP(AtomicBoolean cancel) throws IloException{
+		
+		// runs PADP on its own thread, its strategy is left in pending for the callback
+		
+		cplex.use(new IncumbentCallback(getColumns()), IloCplex.Callback.Context.Id.Relaxation | IloCplex.Callback.Context.Id.LocalProgress);
+		Thread thread = new Thread(() -> {
+			graph.runADP(0, cancel, null);
+			if(cancel.get()) return;
+			graph.setPath();
+			graph.setStrategy();
+			pending.set(getStart(graph.strategy));
+		}, "PADP");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	class IncumbentCallback implements IloCplex.Callback.Function{
+		
+		// posts the pending solution of PADP once, from the first thread of the solver that takes it
+		
+		IloNumVar[] vars;
+		
+		IncumbentCallback(IloNumVar[] vars){
+			this.vars = vars;
+		}
+		
+		@Override
+		public void invoke(IloCplex.Callback.Context context) throws IloException{
+			Start solution = pending.getAndSet(null);
+			if(solution == null) return;
+			context.postHeuristicSolution(vars, solution.values, solution.obj, IloCplex.Callback.Context.SolutionStrategy.CheckFeasible);
+		}
+	}
+	
+	public void solveBenders(double timeLim) throws IloException{
+		
+		/*
+		 *   i. explicit Benders decomposition: the master only has pi and theta, the weighted total reward of the
+		 *      scenarios, bounded by the reward without the capacity (see BendersSubproblem.getUpperBound)
+		 *   ii. each integer candidate (pi^, theta^) of the master is checked in a callback: the scenarios are
+		 *       evaluated under pi^ in parallel, then
+		 *   	ii.i.  the candidate is rejected by a feasibility cut if a capacity is exceeded
+		 *      ii.ii. the candidate is rejected by an optimality cut if theta^ is above the reward of pi^
+		 *      ii.iii otherwise it is accepted, its objective is the reward of pi^
+		 *   thus the flows X, Y and Z are not in the model and the valid inequalities are not used
+		 */
+		
+		double startTime = System.nanoTime();
+		cplex.setParam(IloCplex.Param.TimeLimit	, (timeLim>0) ? timeLim : NO_TIME_LIMIT);
+		
+		// the threads of the subproblem are released once the master is solved
+		subproblem = new BendersSubproblem(problem, nThreads);
+		try {
+			defineFirstStageVariables();
+			theta = cplex.numVar(-Double.MAX_VALUE, subproblem.getUpperBound(), "theta");
+			cplex.addMaximize(theta);
+			cplex.use(new BendersCallback(), IloCplex.Callback.Context.Id.Candidate);
+			if (start != null) {
+				
+				// pi and its reward, the start is kept if the strategy is feasible
+				IloNumVar[] vars = Arrays.copyOf(getPiVars(), (problem.nStage-1)*(problem.nState-1)+1);
+				vars[vars.length-1] = theta;
+				double[] values = new double[vars.length];
+				for(int t=0;t<problem.nStage-1;t++) {
+					for(int i=0;i<problem.nState-1;i++) {
+						values[t*(problem.nState-1)+i] = start[t][i];
+					}
+				}
+				try {
+					values[vars.length-1] = subproblem.getCut(start).value;
+				} catch (IOException e) {
+					throw new IloException("The scenarios cannot be evaluated: " + e.getMessage());
+				}
+				cplex.addMIPStart(vars, values, IloCplex.MIPStartEffort.CheckFeasible, "start");
+			}
+			double solveStart = System.nanoTime();
+			buildTime = (solveStart - startTime)/1000000000;  // in terms of seconds
+			
+			if(cplex.solve()){
+				objVal = cplex.getObjValue() / problem.getTotalWeight();
+				solveTime = (System.nanoTime() - solveStart)/1000000000;
+				elapsedTime = buildTime + solveTime;
+				relativeGap = cplex.getMIPRelativeGap();
+				double[] values = cplex.getValues(getPiVars());
+				for(int t=0;t<problem.nStage-1;t++) {
+					for(int i=0;i<problem.nState-1;i++) {
+						policy[t][i] = (values[t*(problem.nState-1)+i] > 0.5) ? 1 : 0;
+					}
+				}
+			}
+		} finally {
+			subproblem.close();
+		}
+	}
+	
+	IloNumVar[] getPiVars(){
+		
+		// pi[t][i] at t*nSBar+i, as the coefficients of BendersSubproblem.Cut
+		
+		int nSBar = problem.nState-1;
+		IloNumVar[] vars = new IloNumVar[(problem.nStage-1)*nSBar];
+		for(int t=0;t<problem.nStage-1;t++) {
+			for(int i=0;i<nSBar;i++) {
+				vars[t*nSBar+i] = pi[t][i];
+			}
+		}
+		return vars;
+	}
+	
+	class BendersCallback implements IloCplex.Callback.Function{
+		
+		// checks the candidates of the master, it may be called by several threads at once
+		
+		IloNumVar[] piVars = getPiVars();
+		
+		@Override
+		public void invoke(IloCplex.Callback.Context context) throws IloException{
+			if(!context.inCandidate() || !context.isCandidatePoint()) return;
+			double[] values = context.getCandidatePoint(piVars);
+			double thetaValue = context.getCandidatePoint(theta);
+			int nSBar = problem.nState-1;
+			int[][] strategy = new int[problem.nStage-1][nSBar];
 			for(int t=0;t<problem.nStage-1;t++) {
-				for(int i=0;i<problem.nState-1;i++) {
-					if(cplex.getValue(pi[t][i]) > 0.00001 && cplex.getValue(X[0][t][i][1])> 0.00001) policy[t][i] = 1;
-					else policy[t][i] = 0;
+				for(int i=0;i<nSBar;i++) {
+					strategy[t][i] = (values[t*nSBar+i] > 0.5) ? 1 : 0;
+					values[t*nSBar+i] = strategy[t][i];
 				}
 			}
+			
+			BendersSubproblem.Cut cut;
+			try {
+				cut = subproblem.getCut(strategy);
+			} catch (IOException e) {
+				throw new IloException("The scenarios cannot be evaluated: " + e.getMessage());
+			}
+			if(!cut.isViolated(values, thetaValue)) return;
+			IloLinearNumExpr lhs = cplex.linearNumExpr();
+			lhs.addTerms(cut.coef, piVars);
+			if(cut.thetaCoef != 0) lhs.addTerm(cut.thetaCoef, theta);
+			context.rejectCandidate(cplex.le(lhs, cut.rhs));
+		}
+	}
+	
+	void setPolicy() throws IloException{
+		
+		// the values of pi and X[0][.][.][1] are read at once
+		
+		int nTBar = problem.nStage-1;
+		int nSBar = problem.nState-1;
+		IloNumVar[] piVars = new IloNumVar[nTBar*nSBar];
+		IloNumVar[] xVars = new IloNumVar[nTBar*nSBar];
+		for(int t=0;t<nTBar;t++) {
+			for(int i=0;i<nSBar;i++) {
+				piVars[t*nSBar+i] = pi[t][i];
+				xVars[t*nSBar+i] = X[0][t][i][1];
+			}
+		}
+		double[] piValues = cplex.getValues(piVars);
+		double[] xValues = cplex.getValues(xVars);
+		incumbent = new int[nTBar][nSBar];
+		for(int t=0;t<nTBar;t++) {
+			for(int i=0;i<nSBar;i++) {
+				incumbent[t][i] = (piValues[t*nSBar+i] > 0.5) ? 1 : 0;
+				if(piValues[t*nSBar+i] > 0.00001 && xValues[t*nSBar+i] > 0.00001) policy[t][i] = 1;
+				else policy[t][i] = 0;
+			}
 		}
 	}
 	
@@ -305,6 +1200,14 @@ public class MIP {
 		return elapsedTime;
 	}
 
+	public double getBuildTime(){
+		return buildTime;
+	}
+
+	public double getSolveTime(){
+		return solveTime;
+	}
+
 	public double getRelativeGap(){
 		return relativeGap;
 	}
@@ -0,0 +1,413 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import version_2.Problem.MDP;
+
+
+public class ModelWriter {
+
+	/*
+	 *   i. writes the extensive form of MIP-MMDP (see MIP) into an MPS or LP file without a solver, e.g. to solve it
+	 *      on another host. the variables are named as in MIP, the rows by their family (T = nStage):
+	 *   	i.i.    prior_s_i,     X[s][0][i][0] + X[s][0][i][1] = priors[i]                            (setPriorFlows)
+	 *      i.ii.   flow_s_t_j,    sum_i,a P[i][a][j]*X[s][t-1][i][a] - X[s][t][j][0] - X[s][t][j][1] = 0 (setIntermediateFlows)
+	 *      i.iii.  absorb_s_t,    sum_i,a Q[i][a]*X[s][t-1][i][a] + Z[s][t-1] - Z[s][t] = 0, Z[s][0] = 0 (setAbsorbingFlows)
+	 *      i.iv.   terminal_s_j,  sum_i,a P[i][a][j]*X[s][T-2][i][a] - Y[s][j] = 0                     (setTerminalFlows)
+	 *      i.v.    capacity_s_t,  nPop * sum_i X[s][t][i][1] <= capacity[t]                             (setCapacityConstraint)
+	 *      i.vi.   link1_s_t_i,   X[s][t][i][1] - pi[t][i] <= 0                                         (linkStages)
+	 *              link0_s_t_i,   X[s][t][i][0] + pi[t][i] <= 1
+	 *      i.vii.  valid1_s_t and valid2_s, if they are asked for                                       (addValid1, addValid2)
+	 *      the objective is the one of MIP.setObjectiveFunction, the terms of scenario s multiplied by its weight
+	 *
+	 *   ii. the file is streamed: a row (LP) or a column (MPS) is computed from the scenario when it is written and it
+	 *       is not kept, thus the memory does not grow with the size of the model. the MPS file is column-wise; the
+	 *       non-zeros of the column X[s][t][i][a] are read off the row P[i][a][.] (only its non-zeros if P is sparse)
+	 *
+	 *   iii. the format is chosen by the extension of the file, .mps (free MPS) or .lp, followed by .gz if the file is
+	 *        to be compressed
+	 */
+
+	static final int TERMS = 8;  // number of terms in a line of an LP file
+
+	Problem problem;
+	int nScenario;
+	int nT;     // nStage
+	int nSBar;  // number of non-absorbing states
+	boolean isValid1;
+	boolean isValid2;
+	double valid2Rhs;
+
+	Writer out;
+	int nTerm;  // number of terms of the current LP row
+
+	public ModelWriter(Problem problem) {
+		this.problem = problem;
+		nScenario = problem.scenarios.length;
+		nT = problem.nStage;
+		nSBar = problem.nState-1;
+
+		// see MIP.addValid2
+		double totalCap = 0;
+		for(int t=0;t<nT-1;t++) {
+			totalCap += problem.capacity[t];
+		}
+		valid2Rhs = nT - (totalCap + problem.nPop) / problem.nPop;
+	}
+
+	public void write(String fileName, boolean isValid1, boolean isValid2) throws IOException {
+
+		String name = fileName.toLowerCase();
+		boolean isCompressed = name.endsWith(".gz");
+		if(isCompressed) name = name.substring(0, name.length()-3);
+		boolean isLP = name.endsWith(".lp");
+		if(!isLP && !name.endsWith(".mps")) {
+			throw new IllegalArgumentException("The model can only be written into .mps or .lp files: " + fileName);
+		}
+
+		OutputStream stream = new FileOutputStream(fileName);
+		try {
+			if(isCompressed) stream = new GZIPOutputStream(stream, 1 << 16);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.US_ASCII), 1 << 16);
+			if(isLP) writeLP(writer, isValid1, isValid2);
+			else writeMPS(writer, isValid1, isValid2);
+			writer.flush();
+		} finally {
+			stream.close();
+		}
+	}
+
+	// names of the variables as in MIP
+
+	static String pi(int t, int i) {
+		return "pi_" + t + "_" + i;
+	}
+
+	static String X(int s, int t, int i, int a) {
+		return "X_" + s + "_" + t + "_" + i + "_" + a;
+	}
+
+	static String Y(int s, int i) {
+		return "Y_" + s + "_" + i;
+	}
+
+	static String Z(int s, int t) {
+		return "Z_" + s + "_" + t;
+	}
+
+	public void writeLP(Writer out, boolean isValid1, boolean isValid2) throws IOException {
+
+		this.out = out;
+		out.write("\\ MIP-MMDP, " + nScenario + " scenarios, " + nT + " stages, " + (nSBar+1) + " states\n");
+
+		// objective
+		out.write("Maximize\n");
+		beginRow("obj");
+		for(int s=0;s<nScenario;s++) {
+			MDP mdp = problem.scenarios[s];
+			double weight = problem.getWeight(s);
+			for(int t=1;t<nT;t++) {
+				addTerm(weight * problem.rD, Z(s, t));
+			}
+			for(int t=0;t<nT-1;t++) {
+				for(int i=0;i<nSBar;i++) {
+					addTerm(weight * mdp.getr(i, 0), X(s, t, i, 0));
+					addTerm(weight * mdp.getr(i, 1), X(s, t, i, 1));
+				}
+			}
+			for(int i=0;i<nSBar;i++) {
+				addTerm(weight * mdp.getR(i), Y(s, i));
+			}
+		}
+		out.write("\n");
+
+		out.write("Subject To\n");
+		for(int s=0;s<nScenario;s++) {
+			MDP mdp = problem.scenarios[s];
+
+			// prior flows
+			for(int i=0;i<nSBar;i++) {
+				beginRow("prior_" + s + "_" + i);
+				addTerm(1, X(s, 0, i, 0));
+				addTerm(1, X(s, 0, i, 1));
+				endRow("=", problem.priors[i]);
+			}
+
+			// intermediate and terminal flows
+			for(int t=1;t<nT;t++) {
+				for(int j=0;j<nSBar;j++) {
+					beginRow(((t < nT-1) ? "flow_" + s + "_" + t : "terminal_" + s) + "_" + j);
+					for(int i=0;i<nSBar;i++) {
+						addTerm(mdp.getP(i, 0, j), X(s, t-1, i, 0));
+						addTerm(mdp.getP(i, 1, j), X(s, t-1, i, 1));
+					}
+					if(t < nT-1) {
+						addTerm(-1, X(s, t, j, 0));
+						addTerm(-1, X(s, t, j, 1));
+					}else {
+						addTerm(-1, Y(s, j));
+					}
+					endRow("=", 0);
+				}
+			}
+
+			// absorbing flows
+			beginRow("absorb_" + s + "_0");
+			addTerm(1, Z(s, 0));
+			endRow("=", 0);
+			for(int t=1;t<nT;t++) {
+				beginRow("absorb_" + s + "_" + t);
+				for(int i=0;i<nSBar;i++) {
+					addTerm(mdp.getQ(i, 0), X(s, t-1, i, 0));
+					addTerm(mdp.getQ(i, 1), X(s, t-1, i, 1));
+				}
+				addTerm(1, Z(s, t-1));
+				addTerm(-1, Z(s, t));
+				endRow("=", 0);
+			}
+
+			// capacity and linking
+			for(int t=0;t<nT-1;t++) {
+				beginRow("capacity_" + s + "_" + t);
+				for(int i=0;i<nSBar;i++) {
+					addTerm(problem.nPop, X(s, t, i, 1));
+				}
+				endRow("<=", problem.capacity[t]);
+				for(int i=0;i<nSBar;i++) {
+					beginRow("link1_" + s + "_" + t + "_" + i);
+					addTerm(1, X(s, t, i, 1));
+					addTerm(-1, pi(t, i));
+					endRow("<=", 0);
+					beginRow("link0_" + s + "_" + t + "_" + i);
+					addTerm(1, X(s, t, i, 0));
+					addTerm(1, pi(t, i));
+					endRow("<=", 1);
+				}
+			}
+
+			// valid inequalities
+			if(isValid1) {
+				for(int t=0;t<nT;t++) {
+					beginRow("valid1_" + s + "_" + t);
+					for(int i=0;i<nSBar;i++) {
+						if(t < nT-1) {
+							addTerm(1, X(s, t, i, 0));
+							addTerm(1, X(s, t, i, 1));
+						}else {
+							addTerm(1, Y(s, i));
+						}
+					}
+					if(t > 0) addTerm(1, Z(s, t));
+					endRow("=", 1);
+				}
+			}
+			if(isValid2) {
+				beginRow("valid2_" + s);
+				for(int t=0;t<nT-1;t++) {
+					addTerm(1, Z(s, t));
+					for(int i=0;i<nSBar;i++) {
+						addTerm(1, X(s, t, i, 0));
+					}
+				}
+				endRow(">=", valid2Rhs);
+			}
+		}
+
+		// the lower bounds are 0 by default
+		out.write("Bounds\n");
+		for(int s=0;s<nScenario;s++) {
+			for(int t=0;t<nT-1;t++) {
+				for(int i=0;i<nSBar;i++) {
+					out.write(" " + X(s, t, i, 0) + " <= 1\n");
+					out.write(" " + X(s, t, i, 1) + " <= 1\n");
+				}
+			}
+			for(int t=0;t<nT;t++) {
+				out.write(" " + Z(s, t) + " <= 1\n");
+			}
+			for(int i=0;i<nSBar;i++) {
+				out.write(" " + Y(s, i) + " <= 1\n");
+			}
+		}
+		out.write("Binaries\n");
+		for(int t=0;t<nT-1;t++) {
+			for(int i=0;i<nSBar;i++) {
+				out.write(" " + pi(t, i) + "\n");
+			}
+		}
+		out.write("End\n");
+	}
+
+	void beginRow(String name) throws IOException {
+		out.write(" " + name + ":");
+		nTerm = 0;
+	}
+
+	void addTerm(double coef, String var) throws IOException {
+
+		// zero coefficients are skipped, a line is broken after every TERMS terms
+
+		if(coef == 0) return;
+		if(nTerm > 0 && nTerm % TERMS == 0) out.write("\n   ");
+		out.write((coef < 0) ? " - " : " + ");
+		out.write(Double.toString(Math.abs(coef)));
+		out.write(" ");
+		out.write(var);
+		nTerm++;
+	}
+
+	void endRow(String sense, double rhs) throws IOException {
+		out.write(" " + sense + " " + rhs + "\n");
+	}
+
+	public void writeMPS(Writer out, boolean isValid1, boolean isValid2) throws IOException {
+
+		this.out = out;
+		this.isValid1 = isValid1;
+		this.isValid2 = isValid2;
+		out.write("NAME MIP-MMDP\n");
+		out.write("OBJSENSE\n    MAX\n");
+
+		// ROWS: the families in the order of writeLP
+		out.write("ROWS\n N obj\n");
+		for(int s=0;s<nScenario;s++) {
+			for(int i=0;i<nSBar;i++) writeRow("E", "prior_" + s + "_" + i);
+			for(int t=1;t<nT-1;t++) {
+				for(int j=0;j<nSBar;j++) writeRow("E", "flow_" + s + "_" + t + "_" + j);
+			}
+			for(int j=0;j<nSBar;j++) writeRow("E", "terminal_" + s + "_" + j);
+			for(int t=0;t<nT;t++) writeRow("E", "absorb_" + s + "_" + t);
+			for(int t=0;t<nT-1;t++) {
+				writeRow("L", "capacity_" + s + "_" + t);
+				for(int i=0;i<nSBar;i++) {
+					writeRow("L", "link1_" + s + "_" + t + "_" + i);
+					writeRow("L", "link0_" + s + "_" + t + "_" + i);
+				}
+			}
+			if(isValid1) {
+				for(int t=0;t<nT;t++) writeRow("E", "valid1_" + s + "_" + t);
+			}
+			if(isValid2) writeRow("G", "valid2_" + s);
+		}
+
+		// COLUMNS: pi is marked as integer
+		out.write("COLUMNS\n");
+		out.write("    MARKER MARKER INTORG\n");
+		for(int t=0;t<nT-1;t++) {
+			for(int i=0;i<nSBar;i++) {
+				String var = pi(t, i);
+				for(int s=0;s<nScenario;s++) {
+					writeEntry(var, "link1_" + s + "_" + t + "_" + i, -1);
+					writeEntry(var, "link0_" + s + "_" + t + "_" + i, 1);
+				}
+			}
+		}
+		out.write("    MARKER MARKER INTEND\n");
+		for(int s=0;s<nScenario;s++) {
+			MDP mdp = problem.scenarios[s];
+			double weight = problem.getWeight(s);
+			for(int t=0;t<nT-1;t++) {
+				for(int i=0;i<nSBar;i++) {
+					for(int a=0;a<2;a++) writeX(s, mdp, weight, t, i, a);
+				}
+			}
+			for(int t=0;t<nT;t++) writeZ(s, weight, t);
+			for(int i=0;i<nSBar;i++) {
+				String var = Y(s, i);
+				writeEntry(var, "obj", weight * mdp.getR(i));
+				writeEntry(var, "terminal_" + s + "_" + i, -1);
+				if(isValid1) writeEntry(var, "valid1_" + s + "_" + (nT-1), 1);
+			}
+		}
+
+		// RHS: only the non-zeros
+		out.write("RHS\n");
+		for(int s=0;s<nScenario;s++) {
+			for(int i=0;i<nSBar;i++) writeEntry("RHS", "prior_" + s + "_" + i, problem.priors[i]);
+			for(int t=0;t<nT-1;t++) {
+				writeEntry("RHS", "capacity_" + s + "_" + t, problem.capacity[t]);
+				for(int i=0;i<nSBar;i++) writeEntry("RHS", "link0_" + s + "_" + t + "_" + i, 1);
+			}
+			if(isValid1) {
+				for(int t=0;t<nT;t++) writeEntry("RHS", "valid1_" + s + "_" + t, 1);
+			}
+			if(isValid2) writeEntry("RHS", "valid2_" + s, valid2Rhs);
+		}
+
+		// BOUNDS: the lower bounds are 0 by default
+		out.write("BOUNDS\n");
+		for(int t=0;t<nT-1;t++) {
+			for(int i=0;i<nSBar;i++) out.write(" BV BND " + pi(t, i) + "\n");
+		}
+		for(int s=0;s<nScenario;s++) {
+			for(int t=0;t<nT-1;t++) {
+				for(int i=0;i<nSBar;i++) {
+					out.write(" UP BND " + X(s, t, i, 0) + " 1\n");
+					out.write(" UP BND " + X(s, t, i, 1) + " 1\n");
+				}
+			}
+			for(int t=0;t<nT;t++) out.write(" UP BND " + Z(s, t) + " 1\n");
+			for(int i=0;i<nSBar;i++) out.write(" UP BND " + Y(s, i) + " 1\n");
+		}
+		out.write("ENDATA\n");
+	}
+
+	void writeRow(String type, String name) throws IOException {
+		out.write(" " + type + " " + name + "\n");
+	}
+
+	void writeEntry(String column, String row, double value) throws IOException {
+		if(value == 0) return;
+		out.write("    " + column + " " + row + " " + value + "\n");
+	}
+
+	void writeX(int s, MDP mdp, double weight, int t, int i, int a) throws IOException {
+
+		// the column of X[s][t][i][a]: the rows in which it leaves state i in stage t and the rows of the flows into stage t+1
+
+		String var = X(s, t, i, a);
+		writeEntry(var, "obj", weight * mdp.getr(i, a));
+		writeEntry(var, (t == 0) ? "prior_" + s + "_" + i : "flow_" + s + "_" + t + "_" + i, (t == 0) ? 1 : -1);
+		String into = (t < nT-2) ? "flow_" + s + "_" + (t+1) + "_" : "terminal_" + s + "_";
+		if(mdp.isSparse()) {
+			for(int k=mdp.rowStart[a][i];k<mdp.rowStart[a][i+1];k++) {
+				writeEntry(var, into + mdp.column[a][k], mdp.value[a][k]);
+			}
+		}else {
+			for(int j=0;j<nSBar;j++) {
+				writeEntry(var, into + j, mdp.getP(i, a, j));
+			}
+		}
+		writeEntry(var, "absorb_" + s + "_" + (t+1), mdp.getQ(i, a));
+		if(a == 1) {
+			writeEntry(var, "capacity_" + s + "_" + t, problem.nPop);
+			writeEntry(var, "link1_" + s + "_" + t + "_" + i, 1);
+		}else {
+			writeEntry(var, "link0_" + s + "_" + t + "_" + i, 1);
+		}
+		if(isValid1) writeEntry(var, "valid1_" + s + "_" + t, 1);
+		if(isValid2 && a == 0) writeEntry(var, "valid2_" + s, 1);
+	}
+
+	void writeZ(int s, double weight, int t) throws IOException {
+
+		// the column of Z[s][t]: it is carried over into absorb_s_(t+1)
+
+		String var = Z(s, t);
+		if(t > 0) writeEntry(var, "obj", weight * problem.rD);
+		writeEntry(var, "absorb_" + s + "_" + t, (t == 0) ? 1 : -1);
+		if(t < nT-1) writeEntry(var, "absorb_" + s + "_" + (t+1), 1);
+		if(isValid1 && t > 0) writeEntry(var, "valid1_" + s + "_" + t, 1);
+		if(isValid2 && t < nT-1) writeEntry(var, "valid2_" + s, 1);
+	}
+}
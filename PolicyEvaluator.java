@@ -0,0 +1,335 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+public class PolicyEvaluator implements AutoCloseable {
+
+	/*
+	 *   i. evaluates strategies (dim = nTBar x nSBar, 1 if the action is taken) over a scenario set by forward
+	 *      propagation of the occupancy measures, scenario by scenario
+	 *   	i.i.   reward of a scenario, as in Graph: sum_t sum_i X_n[i]*r[i][0] + X_c[i]*r[i][1] + Z*rD, plus the
+	 *             terminal reward sum_i Y[i]*R[i] + nSBar*Z*rD after the last stage
+	 *      i.ii.  capacity usage of a scenario in stage t, nPop * sum_i X_c[i]
+	 *
+	 *   ii. the scenarios are taken from a ScenarioSource chunk by chunk. the chunks are evaluated concurrently,
+	 *       thus at most nThreads chunks are in memory at a time. the usage of each scenario in each stage is
+	 *       only kept if isUsageKept, otherwise only its maximum over the scenarios is
+	 *
+	 *   iii. many strategies are evaluated at once (see evaluate(int[][][])). the work is split into tasks of a
+	 *        chunk and a group of GROUP strategies; within a task, the occupancy of the group is propagated as one
+	 *        (strategies x n) matrix, so that each row of P is read once for the whole group
+	 *
+	 *   iv. the problem only provides the parameters (nStage, nPop, rD, capacity, priors); the scenarios of the
+	 *       source need not be the ones of the problem (see Problem(int nPop, int[] capacity, double[] priors)).
+	 *       the weights of the problem are only used if the source is the problem itself
+	 *
+	 *   v. the tasks of all calls run on one pool of nThreads daemon threads, created with the evaluator; its idle
+	 *      threads end after a minute. close shuts it down once the evaluator is no longer used
+	 */
+
+	static final int CHUNK = 256;  // number of scenarios of a chunk when the source is the problem itself
+	static final int GROUP = 32;   // number of strategies propagated together
+
+	Problem problem;
+	ScenarioSource source;
+	int nTBar;
+	int nSBar;
+	int nThreads;
+	double[] weights;  // weight of each scenario of the source, null if they are equal
+	boolean isUsageKept;
+	ThreadPoolExecutor executor;
+	ThreadLocal<Chunk> chunks;  // the chunk read last by each thread of the pool
+	int round;  // incremented for each call, a chunk read in an earlier call is read again
+
+	public PolicyEvaluator(Problem problem) {
+		this(problem, ScenarioSource.of(problem, CHUNK));
+		weights = problem.weights;
+	}
+
+	public PolicyEvaluator(Problem problem, ScenarioSource source) {
+		this(problem, source, Runtime.getRuntime().availableProcessors());
+	}
+
+	public PolicyEvaluator(Problem problem, ScenarioSource source, int nThreads) {
+		if(source.getNumStates() != problem.nState) {
+			throw new IllegalArgumentException("The scenarios have " + source.getNumStates() + " states, expected " + problem.nState);
+		}
+		this.problem = problem;
+		this.source = source;
+		this.nThreads = nThreads;
+		nTBar = problem.nStage-1;
+		nSBar = problem.nState-1;
+		isUsageKept = true;
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (task) -> {
+			Thread thread = new Thread(task, "PolicyEvaluator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		int size = ScenarioCache.getScenarioSize(problem.nState);
+		chunks = ThreadLocal.withInitial(() -> new Chunk(source.getChunkSize()*size));
+	}
+	
+	class Chunk{
+		
+		double[] blocks;
+		int round;
+		int c;
+		
+		Chunk(int length){
+			blocks = new double[length];
+			round = -1;
+		}
+	}
+	
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	public void setUsageKept(boolean isUsageKept) {
+
+		// the usage of each scenario in each stage takes nScenario*nTBar doubles per strategy
+
+		this.isUsageKept = isUsageKept;
+	}
+
+	public static class Evaluation {
+
+		public double[] reward;    // reward of each scenario
+		public double[] usage;     // capacity usage of scenario l in stage t at l*nTBar+t, null if it is not kept
+		public double[] maxUsage;  // the largest capacity usage of each stage over the scenarios
+		public double objVal;      // weighted mean reward, as Graph.getObjVal and MIP.getObjVal
+		public double worstViolation;  // the largest maxUsage[t] - capacity[t]; the strategy is feasible if it is <= 0
+		public int worstStage;
+		int nTBar;
+		int[] capacity;
+
+		Evaluation(int nScenario, int nTBar, int[] capacity, boolean isUsageKept) {
+			reward = new double[nScenario];
+			if(isUsageKept) usage = new double[nScenario*nTBar];
+			maxUsage = new double[nTBar];
+			this.nTBar = nTBar;
+			this.capacity = capacity;
+		}
+
+		public double getUsage(int l, int t) {
+			return usage[l*nTBar+t];
+		}
+
+		public boolean isFeasible() {
+			return worstViolation <= 0;
+		}
+
+		void setWorstViolation() {
+			worstViolation = Double.NEGATIVE_INFINITY;
+			for(int t=0;t<nTBar;t++) {
+				if(maxUsage[t] - capacity[t] > worstViolation) {
+					worstViolation = maxUsage[t] - capacity[t];
+					worstStage = t;
+				}
+			}
+		}
+	}
+
+	public Evaluation evaluate(int[][] strategy) throws IOException {
+		return evaluate(new int[][][] {strategy})[0];
+	}
+
+	public Evaluation[] evaluate(int[][][] strategies) throws IOException {
+
+		int nStrategy = strategies.length;
+		int nScenario = source.getNumScenarios();
+		Evaluation[] evaluations = new Evaluation[nStrategy];
+		for(int g=0;g<nStrategy;g++) {
+			evaluations[g] = new Evaluation(nScenario, nTBar, problem.capacity, isUsageKept);
+		}
+		int nChunk = source.getNumChunks();
+		int nGroup = (nStrategy + GROUP - 1) / GROUP;
+		if(nChunk*nGroup == 0) return evaluations;
+
+		// the tasks are submitted chunk by chunk, thus a thread mostly finds the chunk it read last
+		int size = ScenarioCache.getScenarioSize(problem.nState);
+		int call;
+		synchronized(this) {
+			call = ++round;
+		}
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		boolean isDone = false;
+		try {
+			for(int c=0;c<nChunk;c++)
+			{
+				for(int k=0;k<nGroup;k++)
+				{
+					int chunk = c;
+					int from = k*GROUP;
+					int to = Math.min(from+GROUP, nStrategy);
+					futures.add(executor.submit(() -> {
+						Chunk loaded = chunks.get();
+						double[] blocks = loaded.blocks;
+						if(loaded.round != call || loaded.c != chunk) {
+							loaded.round = -1;
+							source.readChunk(chunk, blocks);
+							loaded.round = call;
+							loaded.c = chunk;
+						}
+						double[] usage = new double[(to-from)*nTBar];
+						Work work = new Work(to-from);
+						int first = chunk*source.getChunkSize();
+						for(int l=0;l<source.getChunkLength(chunk);l++)
+						{
+							evaluate(strategies, from, to, blocks, l*size, first+l, evaluations, usage, work);
+						}
+						return usage;
+					}));
+				}
+			}
+			for(int c=0;c<nChunk;c++)
+			{
+				for(int k=0;k<nGroup;k++)
+				{
+					double[] usage = futures.get(c*nGroup+k).get();
+					for(int g=k*GROUP;g<Math.min((k+1)*GROUP, nStrategy);g++) {
+						for(int t=0;t<nTBar;t++) {
+							evaluations[g].maxUsage[t] = Math.max(evaluations[g].maxUsage[t], usage[(g-k*GROUP)*nTBar+t]);
+						}
+					}
+				}
+			}
+			isDone = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Evaluating the strategies is interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			if(!isDone) {
+				for(Future<double[]> future: futures) future.cancel(true);
+			}
+		}
+
+		for(Evaluation evaluation: evaluations) {
+			double total = 0;
+			double totalWeight = 0;
+			for(int l=0;l<nScenario;l++) {
+				double weight = (weights == null) ? 1 : weights[l];
+				total += weight * evaluation.reward[l];
+				totalWeight += weight;
+			}
+			evaluation.objVal = total / totalWeight;
+			evaluation.setWorstViolation();
+		}
+		return evaluations;
+	}
+
+	class Work{
+
+		// occupancy of a group of strategies, strategy g at g*nSBar
+
+		double[] v;
+		double[] next;
+		double[] x_n;
+		double[] x_c;
+		double[] z;
+		double[] reward;
+
+		Work(int nStrategy){
+			v = new double[nStrategy*nSBar];
+			next = new double[nStrategy*nSBar];
+			x_n = new double[nStrategy*nSBar];
+			x_c = new double[nStrategy*nSBar];
+			z = new double[nStrategy];
+			reward = new double[nStrategy];
+		}
+	}
+
+	void evaluate(int[][][] strategies, int from, int to, double[] b, int p, int l, Evaluation[] evaluations, double[] usage, Work work) {
+
+		/*
+		 *  rewards of the strategies [from, to) in scenario l, whose block starts at b[p] (see ScenarioTensor for
+		 *  the layout). the capacity usage of strategy g in each stage t is maxed into usage[(g-from)*nTBar+t]
+		 */
+
+		int n = nSBar;
+		int m = to-from;
+		int qOffset = p + n*2*n;
+		int rOffset = qOffset + n*2;
+		int ROffset = rOffset + n*2;
+		double[] v = work.v, next = work.next, x_n = work.x_n, x_c = work.x_c;
+		for(int g=0;g<m;g++) {
+			for(int i=0;i<n;i++) v[g*n+i] = problem.priors[i];
+			work.z[g] = 0;
+			work.reward[g] = 0;
+		}
+		for(int t=0;t<nTBar;t++) {
+
+			// the policy of stage t splits the occupancy
+			for(int g=0;g<m;g++) {
+				int[] policy = strategies[from+g][t];
+				double z = work.z[g];
+				double reward = work.reward[g];
+				double use = 0;
+				for(int i=0;i<n;i++) {
+					if(policy[i] == 1) {
+						x_n[g*n+i] = 0;
+						x_c[g*n+i] = v[g*n+i];
+						use += v[g*n+i];
+					}else {
+						x_n[g*n+i] = v[g*n+i];
+						x_c[g*n+i] = 0;
+					}
+					reward += x_n[g*n+i]*b[rOffset+i*2] + x_c[g*n+i]*b[rOffset+i*2+1] + z * problem.rD;
+				}
+				work.reward[g] = reward;
+				use *= problem.nPop;
+				usage[g*nTBar+t] = Math.max(usage[g*nTBar+t], use);
+				if(isUsageKept) evaluations[from+g].usage[l*nTBar+t] = use;
+			}
+
+			// the occupancy of stage t+1, row by row of P for the whole group
+			for(int k=0;k<m*n;k++) next[k] = 0;
+			for(int i=0;i<n;i++) {
+				int r0 = p + i*2*n;
+				int r1 = r0 + n;
+				double q0 = b[qOffset+i*2];
+				double q1 = b[qOffset+i*2+1];
+				for(int g=0;g<m;g++) {
+					double xn = x_n[g*n+i];
+					double xc = x_c[g*n+i];
+					int o = g*n;
+					for(int j=0;j<n;j++) {
+						next[o+j] += xn * b[r0+j] + xc * b[r1+j];
+					}
+					work.z[g] += xn * q0 + xc * q1;
+				}
+			}
+			double[] swap = v; v = next; next = swap;
+		}
+
+		// terminal reward
+		for(int g=0;g<m;g++) {
+			double reward = work.reward[g];
+			for(int i=0;i<n;i++) {
+				reward += v[g*n+i] * b[ROffset+i];
+			}
+			evaluations[from+g].reward[l] = reward + n * work.z[g] * problem.rD;
+		}
+		work.v = v;
+		work.next = next;
+	}
+}
@@ -4,7 +4,15 @@ package version_2;
 // Libraries
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class Problem {
@@ -19,14 +27,25 @@ public class Problem {
 	 *      i.vi.   capacity,  the capacity for each decision epoch in which the policy-maker can take an action
 	 *      i.vii.  priors,    initial probability distribution over the set of non-absorbing states
 	 *      i.viii. scenarios, MDP models we consider
+	 *      i.ix.   cacheFile, the binary file the scenarios are read from instead of parentDic (see ScenarioCache), if any
+	 *      i.x.    tensor,    off-heap storage of the scenarios (see ScenarioTensor), if any
+	 *      i.xi.   weights,   the weight of each scenario, e.g. the number of scenarios it represents after a
+	 *                         reduction (see ScenarioReduction). null means that every scenario has weight 1
 	 *   
 	 *   ii. in the last decision epoch, the policy maker is not allowed to take an action
 	 *       ii.i. therefore, dim(capacity) = nStage-1
 	 *   
 	 *   iii. prior distribution is defined over the set of non-absorbing states
 	 *       iii.i therefore, dim(priors) = nState-1
+	 *   
+	 *   iv. P of a scenario is also kept in a sparse form if at most SPARSE_DENSITY of its entries are non-zero.
+	 *       the density is checked on the first use of a scenario (see MDP.isSparse), not when it is read. the
+	 *       threshold is set by the system property "mmdp.sparse", 0 turns the sparse form off. scenarios kept
+	 *       in a tensor are read in place, thus they are never copied into the sparse form
 	 */
 	
+	static final double SPARSE_DENSITY = Double.parseDouble(System.getProperty("mmdp.sparse", "0.25"));
+	
 	public int nState;
 	public int nStage;
 	public int nPop;
@@ -35,6 +54,9 @@ public class Problem {
 	public int[] capacity;
 	public double[] priors;
 	public MDP[] scenarios;
+	public String cacheFile;
+	public ScenarioTensor tensor;
+	public double[] weights;
 	
 	public Problem(int nScenario, int nPop, String parentDic, int[] capacity, double[] priors) throws IOException {
 		
@@ -51,6 +73,34 @@ public class Problem {
 		read();
 	}
 	
+	public Problem(String cacheFile, int nScenario, int nPop, int[] capacity, double[] priors) throws IOException {
+		
+		// the case where the scenarios are read from a binary cache file, see ScenarioCache.write
+		
+		nState = priors.length+1;
+		nStage = capacity.length+1;
+		rD = 0;
+		this.nPop = nPop;
+		this.cacheFile = cacheFile;
+		this.capacity = capacity;
+		this.priors = priors;
+		scenarios = new MDP[nScenario];
+		read();
+	}
+	
+	public Problem(int nPop, int[] capacity, double[] priors) {
+
+		// the case where the scenarios are streamed from a ScenarioSource (see PolicyEvaluator), none of them is kept
+
+		nState = priors.length+1;
+		nStage = capacity.length+1;
+		rD = 0;
+		this.nPop = nPop;
+		this.capacity = capacity;
+		this.priors = priors;
+		scenarios = new MDP[0];
+	}
+
 	public Problem(boolean isInstance, int whichScenario, int nPop, String parentDic, int[] capacity, double[] priors) throws IOException {
 		
 		// The only constructor method we have
@@ -64,30 +114,80 @@ public class Problem {
 		this.priors = priors;
 		if(isInstance) {
 			scenarios = new MDP[1];
-			String currFile = parentDic + "Scenario_" + whichScenario + "/";
-			HashMap<String, String> csvFiles = new HashMap<String, String>();
-			csvFiles.put("P", currFile + "P.csv");
-			csvFiles.put("Q", currFile + "Q.csv");
-			csvFiles.put("r", currFile + "r.csv");
-			scenarios[0] = new MDP(csvFiles);
+			scenarios[0] = new MDP(getCsvFiles(whichScenario));
 		}		
 	}
 
 	
 	public void read() throws IOException{
 		
-		// reads the first "nScenario" number of scenarios and stores it into "scenarios"
+		// reads the first "nScenario" number of scenarios and stores it into "scenarios".
+		// the scenario folders are read concurrently by a bounded pool of threads.
+		
+		if(cacheFile != null) {
+			ScenarioCache.read(this, cacheFile);
+			return;
+		}
 		
-		for(int curr_scenario=1;curr_scenario<=scenarios.length;curr_scenario++)
+		int nThreads = Math.min(scenarios.length, Runtime.getRuntime().availableProcessors());
+		if(nThreads == 0) return;
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<MDP>> futures = new ArrayList<Future<MDP>>();
+			for(int curr_scenario=1;curr_scenario<=scenarios.length;curr_scenario++)
+			{
+				HashMap<String, String> csvFiles = getCsvFiles(curr_scenario);
+				futures.add(executor.submit(() -> new MDP(csvFiles)));
+			}
+			for(int l=0;l<scenarios.length;l++)
+			{
+				scenarios[l] = futures.get(l).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Reading the scenarios is interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	public double getWeight(int l) {
+		return (weights == null) ? 1 : weights[l];
+	}
+	
+	public double getTotalWeight() {
+		if(weights == null) return scenarios.length;
+		double total = 0;
+		for(double weight: weights) total += weight;
+		return total;
+	}
+	
+	public void setSparsity() {
+		
+		// checks the density of every scenario at once instead of on first use (see MDP.isSparse)
+		
+		for(MDP mdp: scenarios)
 		{
-			String currFile = parentDic + "Scenario_" + curr_scenario + "/";
-			HashMap<String, String> csvFiles = new HashMap<String, String>();
-			csvFiles.put("P", currFile + "P.csv");
-			csvFiles.put("Q", currFile + "Q.csv");
-			csvFiles.put("r", currFile + "r.csv");
-			scenarios[curr_scenario-1] = new MDP(csvFiles);
+			mdp.isSparse();
 		}
 	}
+	
+	HashMap<String, String> getCsvFiles(int whichScenario) {
+		
+		// the .csv files of a scenario folder, see MDP(HashMap<String, String> csvFiles)
+		
+		String currFile = parentDic + "Scenario_" + whichScenario + "/";
+		HashMap<String, String> csvFiles = new HashMap<String, String>();
+		csvFiles.put("P", currFile + "P.csv");
+		csvFiles.put("Q", currFile + "Q.csv");
+		csvFiles.put("r", currFile + "r.csv");
+		return csvFiles;
+	}
 	 
 	public class MDP {
 		
@@ -98,6 +198,8 @@ public class Problem {
 		 *          ii.ii.  Q, transition probabilities to the absorbing state,     dim = |S-1|x2
 		 *          ii.iii. r, immediate rewards,                                   dim = |S-1|x2
 		 *          ii.iv.  R, terminal rewards,									dim = |S-1|  
+		 *  iii. the components are either kept in the arrays below or in a ScenarioTensor, in which case the arrays
+		 *       are null. Thus, they should be read through the accessors getP, getQ, getr and getR.
 		 */         
 		
 		double [][][] P; 
@@ -105,6 +207,17 @@ public class Problem {
 		double [][] r;
 		double [] R;
 		
+		ScenarioTensor tensor;
+		int l;  // the index of the scenario in the tensor
+		
+		// sparse form of P, the rows P[i][a][.] of action a in compressed sparse row format (null if P is dense):
+		// the non-zeros of row i are value[a][k] at column[a][k], k = rowStart[a][i],...,rowStart[a][i+1]-1.
+		// it is built once the density is checked (see isSparse)
+		volatile boolean isChecked;
+		int [][] rowStart;
+		int [][] column;
+		double [][] value;
+		
 		public MDP(double [][][] P, double [][] Q, double [][] r, double [] R) {
 			
 			// Constructor method 1: the case where the components are specified in the arguments
@@ -115,6 +228,14 @@ public class Problem {
 			this.R = R;
 		}
 		
+		public MDP(ScenarioTensor tensor, int l) {
+			
+			// Constructor method 3: the case where the components are kept in a tensor
+			
+			this.tensor = tensor;
+			this.l = l;
+		}
+		
 		public MDP(HashMap<String, String> csvFiles) throws IOException {
 			
 			// Constructor method 2: the case where the directory in which components are read is given
@@ -147,42 +268,15 @@ public class Problem {
 			
 			// read and prepare P
 			
-			BufferedReader br = new BufferedReader( new FileReader(csvFiles.get("P")));
-			String strLine = "";
-			double[] dummyP = new double[(nState-1)*2*(nState-1)];
-			int index = 0;
-			while( (strLine = br.readLine()) != null)
-			{
-				dummyP[index++] = Double.parseDouble(strLine);
-			}
-			br.close();
-			P = from1Dto3D(dummyP, nState-1, 2, nState-1);
+			P = from1Dto3D(readValues(csvFiles.get("P"), (nState-1)*2*(nState-1)), nState-1, 2, nState-1);
 			
 			// read and prepare Q
 			
-			br = new BufferedReader( new FileReader(csvFiles.get("Q")));
-			strLine = "";
-			double[] dummyQ = new double[(nState-1)*2];
-			index = 0;
-			while( (strLine = br.readLine()) != null)
-			{
-				dummyQ[index++] = Double.parseDouble(strLine);
-			}
-			br.close();
-			Q = from1Dto2D(dummyQ, nState-1, 2);
+			Q = from1Dto2D(readValues(csvFiles.get("Q"), (nState-1)*2), nState-1, 2);
 			
 			// read and prepare r
 
-			br = new BufferedReader( new FileReader(csvFiles.get("r")));
-			strLine = "";
-			double[] dummyr = new double[(nState-1)*2];
-			index = 0;
-			while( (strLine = br.readLine()) != null)
-			{
-				dummyr[index++] = Double.parseDouble(strLine);
-			}
-			br.close();
-			r = from1Dto2D(dummyr, nState-1, 2);
+			r = from1Dto2D(readValues(csvFiles.get("r"), (nState-1)*2), nState-1, 2);
 
 			// derive R from r
 
@@ -191,7 +285,260 @@ public class Problem {
 				R[i] = (r[i][0]+r[i][1])/2;
 			}
 		}
+		
+		public double getP(int i, int a, int j) {
+			return (tensor == null) ? P[i][a][j] : tensor.getP(l, i, a, j);
+		}
+		
+		public double getQ(int i, int a) {
+			return (tensor == null) ? Q[i][a] : tensor.getQ(l, i, a);
+		}
+		
+		public double getr(int i, int a) {
+			return (tensor == null) ? r[i][a] : tensor.getr(l, i, a);
+		}
+		
+		public double getR(int i) {
+			return (tensor == null) ? R[i] : tensor.getR(l, i);
+		}
+		
+		public boolean isSparse() {
+			if(!isChecked) checkSparsity();
+			return rowStart != null;
+		}
+		
+		synchronized void checkSparsity() {
+			
+			// builds the sparse form if P is sparse enough; a scenario of a tensor is left as it is
+			
+			if(isChecked) return;
+			if(tensor == null && SPARSE_DENSITY > 0 && getDensity() <= SPARSE_DENSITY) setSparse();
+			isChecked = true;
+		}
+		
+		double getDensity() {
+			
+			// the share of the non-zero entries of P
+			
+			int n = nState-1;
+			int nonZeros = 0;
+			for(int i=0;i<n;i++) {
+				for(int a=0;a<2;a++) {
+					for(int j=0;j<n;j++) {
+						if(getP(i, a, j) != 0) nonZeros++;
+					}
+				}
+			}
+			return (n == 0) ? 1 : (double) nonZeros / (2*n*n);
+		}
+		
+		void setSparse() {
+			
+			// builds the compressed sparse rows of P for each action
+			
+			int n = nState-1;
+			rowStart = new int[2][n+1];
+			column = new int[2][];
+			value = new double[2][];
+			for(int a=0;a<2;a++) {
+				int nonZeros = 0;
+				for(int i=0;i<n;i++) {
+					rowStart[a][i] = nonZeros;
+					for(int j=0;j<n;j++) {
+						if(getP(i, a, j) != 0) nonZeros++;
+					}
+				}
+				rowStart[a][n] = nonZeros;
+				column[a] = new int[nonZeros];
+				value[a] = new double[nonZeros];
+				int k = 0;
+				for(int i=0;i<n;i++) {
+					for(int j=0;j<n;j++) {
+						double p = getP(i, a, j);
+						if(p != 0) {
+							column[a][k] = j;
+							value[a][k++] = p;
+						}
+					}
+				}
+			}
+		}
+		
+		void getScenario(double[] dst) {
+			
+			// copies the components into dst in the layout of ScenarioTensor
+			
+			if(tensor != null) {
+				tensor.getScenario(l, dst);
+				return;
+			}
+			int n = nState-1;
+			int index = 0;
+			for(int i=0;i<n;i++) {
+				for(int a=0;a<2;a++) {
+					for(int j=0;j<n;j++) {
+						dst[index++] = P[i][a][j];
+					}
+				}
+			}
+			for(int i=0;i<n;i++) {
+				dst[index++] = Q[i][0];
+				dst[index++] = Q[i][1];
+			}
+			for(int i=0;i<n;i++) {
+				dst[index++] = r[i][0];
+				dst[index++] = r[i][1];
+			}
+			for(int i=0;i<n;i++) {
+				dst[index++] = R[i];
+			}
+		}
 	}	
+	
+	public void pack() {
+		
+		// moves the scenarios into an off-heap tensor, the MDPs become views of it
+		
+		if(tensor != null) return;
+		ScenarioTensor packed = ScenarioTensor.allocate(nState, scenarios.length);
+		double[] block = new double[ScenarioCache.getScenarioSize(nState)];
+		for(int l=0;l<scenarios.length;l++)
+		{
+			scenarios[l].getScenario(block);
+			packed.putScenario(l, block);
+			scenarios[l] = new MDP(packed, l);
+		}
+		tensor = packed;
+	}
+
+	public static double[] readValues(String file, int nValues) throws IOException {
+		
+		// reads the whole file at once and parses exactly nValues numbers from it
+		
+		byte[] buf = Files.readAllBytes(Paths.get(file));
+		double[] values = new double[nValues];
+		int found = parseValues(buf, values);
+		if(found != nValues)
+		{
+			throw new IOException(file + ": expected " + nValues + " values, found " + found);
+		}
+		return values;
+	}
+	
+	public static int parseValues(byte[] buf, double[] values) throws IOException {
+		
+		/*
+		 *  parses the numbers in buf, separated by new lines, commas, semicolons or white spaces, into values
+		 *  and returns how many numbers buf contains (it may be more than values.length).
+		 *  
+		 *  A number with at most 18 significant digits whose power of ten is within [-22, 22] is converted
+		 *  exactly, i.e. with a single rounding, without any allocation. Others are left to Double.parseDouble.
+		 */
+		
+		int count = 0;
+		int pos = 0;
+		int n = buf.length;
+		while(pos < n)
+		{
+			byte b = buf[pos];
+			if(b == '\n' || b == '\r' || b == ',' || b == ';' || b == ' ' || b == '\t')
+			{
+				pos++;
+				continue;
+			}
+			int start = pos;
+			boolean negative = false;
+			if(b == '-' || b == '+')
+			{
+				negative = (b == '-');
+				pos++;
+			}
+			long mantissa = 0;
+			int nDigits = 0;
+			int exp10 = 0;
+			boolean isExact = true;
+			boolean hasDigit = false;
+			while(pos < n && buf[pos] >= '0' && buf[pos] <= '9')
+			{
+				hasDigit = true;
+				if(nDigits < 18) {
+					mantissa = 10*mantissa + (buf[pos]-'0');
+					if(mantissa > 0) nDigits++;
+				}
+				else {
+					exp10++;
+					if(buf[pos] != '0') isExact = false;
+				}
+				pos++;
+			}
+			if(pos < n && buf[pos] == '.')
+			{
+				pos++;
+				while(pos < n && buf[pos] >= '0' && buf[pos] <= '9')
+				{
+					hasDigit = true;
+					if(nDigits < 18) {
+						mantissa = 10*mantissa + (buf[pos]-'0');
+						if(mantissa > 0) nDigits++;
+						exp10--;
+					}
+					else if(buf[pos] != '0') isExact = false;
+					pos++;
+				}
+			}
+			if(hasDigit && pos < n && (buf[pos] == 'e' || buf[pos] == 'E'))
+			{
+				pos++;
+				boolean expNegative = false;
+				if(pos < n && (buf[pos] == '-' || buf[pos] == '+'))
+				{
+					expNegative = (buf[pos] == '-');
+					pos++;
+				}
+				int exp = 0;
+				boolean hasExpDigit = false;
+				while(pos < n && buf[pos] >= '0' && buf[pos] <= '9')
+				{
+					hasExpDigit = true;
+					if(exp < 100000) exp = 10*exp + (buf[pos]-'0');
+					pos++;
+				}
+				if(!hasExpDigit) hasDigit = false;
+				exp10 += expNegative ? -exp : exp;
+			}
+			
+			// anything else up to the next separator, e.g. NaN, makes the number go through Double.parseDouble
+			while(pos < n && !(buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == ',' || buf[pos] == ';' || buf[pos] == ' ' || buf[pos] == '\t'))
+			{
+				isExact = false;
+				pos++;
+			}
+			
+			double value;
+			if(hasDigit && isExact && mantissa < (1L << 53) && exp10 >= -22 && exp10 <= 22)
+			{
+				value = (exp10 >= 0) ? mantissa * POWERS_OF_TEN[exp10] : mantissa / POWERS_OF_TEN[-exp10];
+				if(negative) value = -value;
+			}
+			else
+			{
+				String token = new String(buf, start, pos-start, java.nio.charset.StandardCharsets.US_ASCII);
+				try {
+					value = Double.parseDouble(token);
+				} catch (NumberFormatException e) {
+					throw new IOException("Cannot parse \"" + token + "\" as the value " + (count+1), e);
+				}
+			}
+			if(count < values.length) values[count] = value;
+			count++;
+		}
+		return count;
+	}
+	
+	static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
 
 	public static double[][] from1Dto2D(double[] A, int m, int n){
 		
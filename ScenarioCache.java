@@ -0,0 +1,150 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+public class ScenarioCache {
+
+	/*
+	 *   i. binary format of a whole scenario set, little-endian
+	 *   	i.i.  header, 4 ints: MAGIC, VERSION, nState, nScenario
+	 *      i.ii. for each scenario, contiguous doubles: P (dim = |S-1|x2x|S-1|), Q (|S-1|x2), r (|S-1|x2), R (|S-1|),
+	 *            flattened in the same order as the .csv files
+	 *
+	 *   ii. the file is written once from the "Data/Scenario_k/" folders (see write) and then memory-mapped
+	 *       (see map) as the ScenarioTensor of a problem, so that several JVMs on the same host share the pages
+	 *       of the file and the heap does not hold the scenarios
+	 *
+	 *   iii. a mapping is limited to 2GB, thus the file is mapped in chunks of whole scenarios
+	 */
+
+	static final int MAGIC = 0x4D4D4450;  // "MMDP"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+
+	public static int getScenarioSize(int nState) {
+
+		// number of doubles of a scenario
+
+		int n = nState-1;
+		return n*2*n + n*2 + n*2 + n;
+	}
+
+	public static void write(String parentDic, int nScenario, int nState, String cacheFile) throws IOException {
+
+		// converts the first nScenario scenario folders of parentDic into cacheFile, one scenario at a time
+
+		int n = nState-1;
+		int size = getScenarioSize(nState);
+		try(FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(nState).putInt(nScenario);
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer buf = ByteBuffer.allocate(size*8).order(ByteOrder.LITTLE_ENDIAN);
+			for(int curr_scenario=1;curr_scenario<=nScenario;curr_scenario++)
+			{
+				String currFile = parentDic + "Scenario_" + curr_scenario + "/";
+				double[] P = Problem.readValues(currFile + "P.csv", n*2*n);
+				double[] Q = Problem.readValues(currFile + "Q.csv", n*2);
+				double[] r = Problem.readValues(currFile + "r.csv", n*2);
+
+				buf.clear();
+				DoubleBuffer values = buf.asDoubleBuffer();
+				values.put(P).put(Q).put(r);
+				for(int i=0;i<n;i++)
+				{
+					values.put((r[i*2]+r[i*2+1])/2);  // R is derived from r as in Problem.MDP
+				}
+				buf.limit(size*8);
+				writeFully(channel, buf);
+			}
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) channel.write(buf);
+	}
+
+	public static DoubleBuffer[] map(String cacheFile, int nState, int nScenario) throws IOException {
+
+		/*
+		 *  maps the first nScenario scenarios of cacheFile (read-only) and returns them in chunks. Chunk c holds the
+		 *  scenarios [c*perChunk, (c+1)*perChunk), where perChunk = getScenariosPerChunk(nState).
+		 */
+
+		try(FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+			checkHeader(channel, cacheFile, nState, nScenario);
+
+			long bytesPerScenario = 8L * getScenarioSize(nState);
+			int perChunk = getScenariosPerChunk(nState);
+			int nChunk = (nScenario + perChunk - 1) / perChunk;
+			DoubleBuffer[] chunks = new DoubleBuffer[nChunk];
+			for(int c=0;c<nChunk;c++)
+			{
+				int first = c*perChunk;
+				int count = Math.min(perChunk, nScenario - first);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + bytesPerScenario * first, bytesPerScenario * count);
+				chunks[c] = mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+			return chunks;
+		}
+	}
+
+	static void checkHeader(FileChannel channel, String cacheFile, int nState, int nScenario) throws IOException {
+
+		// throws an IOException unless the file holds at least nScenario scenarios of nState states
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		while(header.hasRemaining())
+		{
+			if(channel.read(header, header.position()) < 0) throw new IOException(cacheFile + ": the header is incomplete");
+		}
+		header.flip();
+		if(header.getInt() != MAGIC) throw new IOException(cacheFile + ": not a scenario cache file");
+		int version = header.getInt();
+		if(version != VERSION) throw new IOException(cacheFile + ": unsupported version " + version);
+		int fileState = header.getInt();
+		int fileScenario = header.getInt();
+		if(fileState != nState)
+		{
+			throw new IOException(cacheFile + ": expected " + nState + " states, found " + fileState);
+		}
+		if(fileScenario < nScenario)
+		{
+			throw new IOException(cacheFile + ": expected at least " + nScenario + " scenarios, found " + fileScenario);
+		}
+		long bytesPerScenario = 8L * getScenarioSize(nState);
+		if(channel.size() < HEADER_BYTES + bytesPerScenario * fileScenario)
+		{
+			throw new IOException(cacheFile + ": the file is truncated");
+		}
+	}
+
+	public static int getScenariosPerChunk(int nState) {
+		return Integer.MAX_VALUE / (8 * getScenarioSize(nState));
+	}
+
+	public static void read(Problem problem, String cacheFile) throws IOException {
+
+		// maps the file as the tensor of the problem, the scenarios become views of it
+
+		DoubleBuffer[] chunks = map(cacheFile, problem.nState, problem.scenarios.length);
+		problem.tensor = new ScenarioTensor(problem.nState, problem.scenarios.length, chunks);
+		for(int l=0;l<problem.scenarios.length;l++)
+		{
+			problem.scenarios[l] = problem.new MDP(problem.tensor, l);
+		}
+	}
+}
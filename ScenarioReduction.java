@@ -0,0 +1,223 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class ScenarioReduction {
+
+	/*
+	 *   i. reduces the scenarios of a problem into nCluster weighted representatives
+	 *   	i.i.   a scenario is a point of its P, Q and r parameters (R is derived from r)
+	 *      i.ii.  the points are clustered by k-means, seeded by k-means++
+	 *      i.iii. the representative of a cluster is its scenario closest to the mean of the cluster, so that it
+	 *             is one of the original MDPs. its weight is the number of scenarios in the cluster
+	 *
+	 *   ii. the reduced problem is solved as usual (Graph and MIP use the weights, see Problem.getWeight). the
+	 *       strategy is then evaluated over the full set (see evaluate) to see how far the result is from it
+	 */
+
+	static final int MAX_ITERATION = 100;
+
+	Problem problem;
+	int nCluster;
+	int nScenario;
+	int dim;             // number of parameters of a scenario
+	double[][] points;   // parameters of each scenario
+
+	int[] assignment;      // cluster of each scenario
+	int[] representative;  // scenario of each cluster
+	double[] weights;      // number of scenarios of each cluster
+	double distortion;     // mean squared distance of the scenarios to their representatives
+
+	public ScenarioReduction(Problem problem, int nCluster) {
+		this.problem = problem;
+		nScenario = problem.scenarios.length;
+		this.nCluster = Math.min(nCluster, nScenario);
+		int n = problem.nState-1;
+		dim = n*2*n + n*2 + n*2;
+		points = new double[nScenario][];
+		double[] block = new double[ScenarioCache.getScenarioSize(problem.nState)];
+		for(int l=0;l<nScenario;l++)
+		{
+			problem.scenarios[l].getScenario(block);
+			points[l] = Arrays.copyOf(block, dim);
+		}
+	}
+
+	public void run(long seed) {
+
+		Random random = new Random(seed);
+		double[][] means = seed(random);
+		assignment = new int[nScenario];
+		Arrays.fill(assignment, -1);
+		int[] size = new int[nCluster];
+		for(int iteration=0;iteration<MAX_ITERATION;iteration++)
+		{
+			// assignment step
+			boolean isChanged = false;
+			for(int l=0;l<nScenario;l++)
+			{
+				int best = getClosest(points[l], means);
+				if(best != assignment[l]) {
+					assignment[l] = best;
+					isChanged = true;
+				}
+			}
+			if(!isChanged) break;
+
+			// update step, an empty cluster takes the scenario farthest from its mean
+			Arrays.fill(size, 0);
+			for(double[] mean: means) Arrays.fill(mean, 0);
+			for(int l=0;l<nScenario;l++)
+			{
+				size[assignment[l]]++;
+				double[] mean = means[assignment[l]];
+				for(int d=0;d<dim;d++) mean[d] += points[l][d];
+			}
+			for(int c=0;c<nCluster;c++)
+			{
+				for(int d=0;d<dim && size[c]>0;d++) means[c][d] /= size[c];
+			}
+			for(int c=0;c<nCluster;c++)
+			{
+				if(size[c] > 0) continue;
+				int farthest = -1;
+				double distance = -1;
+				for(int l=0;l<nScenario;l++)
+				{
+					double val = getDistance(points[l], means[assignment[l]]);
+					if(size[assignment[l]] > 1 && val > distance) {
+						distance = val;
+						farthest = l;
+					}
+				}
+				size[assignment[farthest]]--;
+				size[c]++;
+				assignment[farthest] = c;
+				means[c] = Arrays.copyOf(points[farthest], dim);
+			}
+		}
+
+		// representatives and weights
+		representative = new int[nCluster];
+		weights = new double[nCluster];
+		double[] closest = new double[nCluster];
+		Arrays.fill(closest, Double.MAX_VALUE);
+		for(int l=0;l<nScenario;l++)
+		{
+			int c = assignment[l];
+			weights[c]++;
+			double distance = getDistance(points[l], means[c]);
+			if(distance < closest[c]) {
+				closest[c] = distance;
+				representative[c] = l;
+			}
+		}
+		distortion = 0;
+		for(int l=0;l<nScenario;l++)
+		{
+			distortion += getDistance(points[l], points[representative[assignment[l]]]);
+		}
+		distortion /= nScenario;
+	}
+
+	double[][] seed(Random random) {
+
+		// k-means++: each next mean is a scenario drawn with probability proportional to its squared
+		// distance to the closest mean so far
+
+		double[][] means = new double[nCluster][];
+		means[0] = Arrays.copyOf(points[random.nextInt(nScenario)], dim);
+		double[] distance = new double[nScenario];
+		Arrays.fill(distance, Double.MAX_VALUE);
+		for(int c=1;c<nCluster;c++)
+		{
+			double total = 0;
+			for(int l=0;l<nScenario;l++)
+			{
+				distance[l] = Math.min(distance[l], getDistance(points[l], means[c-1]));
+				total += distance[l];
+			}
+			int chosen = random.nextInt(nScenario);
+			double target = random.nextDouble() * total;
+			for(int l=0;l<nScenario && total>0;l++)
+			{
+				target -= distance[l];
+				if(target <= 0 && distance[l] > 0) {
+					chosen = l;
+					break;
+				}
+			}
+			means[c] = Arrays.copyOf(points[chosen], dim);
+		}
+		return means;
+	}
+
+	int getClosest(double[] point, double[][] means) {
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for(int c=0;c<means.length;c++)
+		{
+			double distance = getDistance(point, means[c]);
+			if(distance < bestDistance) {
+				bestDistance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	double getDistance(double[] x, double[] y) {
+
+		// squared Euclidean distance
+
+		double distance = 0;
+		for(int d=0;d<dim;d++) {
+			double diff = x[d] - y[d];
+			distance += diff * diff;
+		}
+		return distance;
+	}
+
+	public Problem getReducedProblem() {
+
+		// a problem with the same parameters whose scenarios are the representatives, weighted by cluster size
+
+		Problem reduced = new Problem(problem.nPop, problem.capacity, problem.priors);
+		reduced.rD = problem.rD;
+		reduced.parentDic = problem.parentDic;
+		reduced.scenarios = new Problem.MDP[nCluster];
+		for(int c=0;c<nCluster;c++)
+		{
+			reduced.scenarios[c] = problem.scenarios[representative[c]];
+		}
+		reduced.weights = weights.clone();
+		return reduced;
+	}
+
+	public PolicyEvaluator.Evaluation evaluate(int[][] strategy) throws IOException {
+
+		// evaluates a strategy, e.g. the one found for the reduced problem, over the full set of scenarios
+
+		try(PolicyEvaluator evaluator = new PolicyEvaluator(problem)) {
+			return evaluator.evaluate(strategy);
+		}
+	}
+
+	public int[] getRepresentatives() {
+		return representative;
+	}
+
+	public double[] getWeights() {
+		return weights;
+	}
+
+	public double getDistortion() {
+		return distortion;
+	}
+}
@@ -0,0 +1,144 @@
+package version_2;
+
+
+// Libraries
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+public interface ScenarioSource {
+
+	/*
+	 *   i. a scenario set that is accessed in chunks of consecutive scenarios, so that only one chunk (per reader)
+	 *      has to be in memory at a time
+	 *   	i.i.   a chunk is read into an array of scenario blocks, laid out as in ScenarioTensor
+	 *      i.ii.  chunk c holds the scenarios [c*getChunkSize(), min((c+1)*getChunkSize(), getNumScenarios()))
+	 *
+	 *   ii. sources
+	 *   	ii.i.   of(problem),   the scenarios of a problem in memory
+	 *      ii.ii.  ofCache(...),  a binary file of ScenarioCache, read with positional reads instead of a mapping
+	 *      ii.iii. ofFolders(...), the "Scenario_k/" folders of a directory, read one by one
+	 *
+	 *   iii. readChunk may be called concurrently by several threads, each with its own destination array
+	 */
+
+	int getNumScenarios();
+
+	int getNumStates();
+
+	int getChunkSize();
+
+	void readChunk(int c, double[] dst) throws IOException;
+
+	default int getNumChunks() {
+		return (getNumScenarios() + getChunkSize() - 1) / getChunkSize();
+	}
+
+	default int getChunkLength(int c) {
+
+		// number of scenarios of chunk c
+
+		return Math.min(getChunkSize(), getNumScenarios() - c*getChunkSize());
+	}
+
+	default ScenarioTensor wrap(double[] dst) {
+
+		// a tensor view of a chunk read into dst, scenario k of the chunk is at index k
+
+		return new ScenarioTensor(getNumStates(), getChunkSize(), new DoubleBuffer[] {DoubleBuffer.wrap(dst)});
+	}
+
+	static ScenarioSource of(Problem problem) {
+		return of(problem, Math.max(1, problem.scenarios.length));
+	}
+
+	static ScenarioSource of(Problem problem, int chunkSize) {
+		return new ScenarioSource() {
+
+			public int getNumScenarios() { return problem.scenarios.length; }
+
+			public int getNumStates() { return problem.nState; }
+
+			public int getChunkSize() { return chunkSize; }
+
+			public void readChunk(int c, double[] dst) {
+				int size = ScenarioCache.getScenarioSize(problem.nState);
+				double[] block = new double[size];
+				for(int k=0;k<getChunkLength(c);k++)
+				{
+					problem.scenarios[c*chunkSize+k].getScenario(block);
+					System.arraycopy(block, 0, dst, k*size, size);
+				}
+			}
+		};
+	}
+
+	static ScenarioSource ofCache(String cacheFile, int nState, int nScenario, int chunkSize) throws IOException {
+
+		// the header is checked once, the scenarios are read chunk by chunk. a chunk should be smaller than 2GB
+
+		try(FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+			ScenarioCache.checkHeader(channel, cacheFile, nState, nScenario);
+		}
+		long bytesPerScenario = 8L * ScenarioCache.getScenarioSize(nState);
+		return new ScenarioSource() {
+
+			public int getNumScenarios() { return nScenario; }
+
+			public int getNumStates() { return nState; }
+
+			public int getChunkSize() { return chunkSize; }
+
+			public void readChunk(int c, double[] dst) throws IOException {
+				int count = getChunkLength(c);
+				ByteBuffer buf = ByteBuffer.allocate((int) (bytesPerScenario * count)).order(ByteOrder.LITTLE_ENDIAN);
+				long position = ScenarioCache.HEADER_BYTES + bytesPerScenario * c * chunkSize;
+				try(FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+					while(buf.hasRemaining())
+					{
+						if(channel.read(buf, position + buf.position()) < 0) throw new IOException(cacheFile + ": the file is truncated");
+					}
+				}
+				buf.flip();
+				buf.asDoubleBuffer().get(dst, 0, buf.remaining()/8);
+			}
+		};
+	}
+
+	static ScenarioSource ofFolders(String parentDic, int nState, int nScenario, int chunkSize) {
+		return new ScenarioSource() {
+
+			public int getNumScenarios() { return nScenario; }
+
+			public int getNumStates() { return nState; }
+
+			public int getChunkSize() { return chunkSize; }
+
+			public void readChunk(int c, double[] dst) throws IOException {
+				int n = nState-1;
+				int size = ScenarioCache.getScenarioSize(nState);
+				for(int k=0;k<getChunkLength(c);k++)
+				{
+					String currFile = parentDic + "Scenario_" + (c*chunkSize+k+1) + "/";
+					double[] P = Problem.readValues(currFile + "P.csv", n*2*n);
+					double[] Q = Problem.readValues(currFile + "Q.csv", n*2);
+					double[] r = Problem.readValues(currFile + "r.csv", n*2);
+					int base = k*size;
+					System.arraycopy(P, 0, dst, base, P.length);
+					System.arraycopy(Q, 0, dst, base + n*2*n, Q.length);
+					System.arraycopy(r, 0, dst, base + n*2*n + n*2, r.length);
+					for(int i=0;i<n;i++)
+					{
+						dst[base + n*2*n + 4*n + i] = (r[i*2]+r[i*2+1])/2;  // R is derived from r as in Problem.MDP
+					}
+				}
+			}
+		};
+	}
+}
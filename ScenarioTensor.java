@@ -0,0 +1,96 @@
+package version_2;
+
+
+// Libraries
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+
+public class ScenarioTensor {
+
+	/*
+	 *   i. scenario-major storage of the MDP components of a scenario set, outside of the heap
+	 *   	i.i.   a scenario is a block of "size" contiguous doubles, laid out as in ScenarioCache
+	 *      i.ii.  P[i][a][j] at (i*2+a)*n+j, Q[i][a] at qOffset+i*2+a, r[i][a] at rOffset+i*2+a, R[i] at ROffset+i,
+	 *             where n = nState-1
+	 *
+	 *   ii. the buffers are either mapped from a cache file (see ScenarioCache.map) or allocated directly
+	 *       (see allocate). a buffer is limited to 2GB, thus the scenarios are kept in chunks of perChunk scenarios
+	 */
+
+	int n;
+	int nScenario;
+	int size;
+	int qOffset;
+	int rOffset;
+	int ROffset;
+	int perChunk;
+	DoubleBuffer[] chunks;
+
+	public ScenarioTensor(int nState, int nScenario, DoubleBuffer[] chunks) {
+		n = nState-1;
+		this.nScenario = nScenario;
+		size = ScenarioCache.getScenarioSize(nState);
+		qOffset = n*2*n;
+		rOffset = qOffset + n*2;
+		ROffset = rOffset + n*2;
+		perChunk = ScenarioCache.getScenariosPerChunk(nState);
+		this.chunks = chunks;
+	}
+
+	public static ScenarioTensor allocate(int nState, int nScenario) {
+
+		// direct (off-heap) buffers for nScenario scenarios
+
+		int size = ScenarioCache.getScenarioSize(nState);
+		int perChunk = ScenarioCache.getScenariosPerChunk(nState);
+		int nChunk = (nScenario + perChunk - 1) / perChunk;
+		DoubleBuffer[] chunks = new DoubleBuffer[nChunk];
+		for(int c=0;c<nChunk;c++)
+		{
+			int count = Math.min(perChunk, nScenario - c*perChunk);
+			chunks[c] = ByteBuffer.allocateDirect(count*size*8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+		return new ScenarioTensor(nState, nScenario, chunks);
+	}
+
+	double get(int l, int index) {
+		return chunks[l / perChunk].get((l % perChunk)*size + index);
+	}
+
+	public double getP(int l, int i, int a, int j) {
+		return get(l, (i*2+a)*n+j);
+	}
+
+	public double getQ(int l, int i, int a) {
+		return get(l, qOffset+i*2+a);
+	}
+
+	public double getr(int l, int i, int a) {
+		return get(l, rOffset+i*2+a);
+	}
+
+	public double getR(int l, int i) {
+		return get(l, ROffset+i);
+	}
+
+	public void getScenario(int l, double[] dst) {
+
+		// copies the whole block of scenario l into dst[0...size)
+
+		DoubleBuffer values = chunks[l / perChunk].duplicate();
+		values.position((l % perChunk)*size);
+		values.get(dst, 0, size);
+	}
+
+	public void putScenario(int l, double[] src) {
+
+		// overwrites the block of scenario l with src[0...size)
+
+		DoubleBuffer values = chunks[l / perChunk].duplicate();
+		values.position((l % perChunk)*size);
+		values.put(src, 0, size);
+	}
+}
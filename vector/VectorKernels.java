@@ -0,0 +1,57 @@
+package version_2;
+
+
+// Libraries
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+
+class VectorKernels implements Kernels.Dense {
+
+	/*
+	 *   i. the VECTOR backend of Kernels, on the incubating Vector API (jdk.incubator.vector, JDK 17 or later).
+	 *      it is compiled apart from the other classes, which are kept to Java 8, and it is loaded by reflection
+	 *      (see Kernels.loadVector); the JVM needs --add-modules jdk.incubator.vector
+	 *
+	 *   ii. the layout is the one of BLOCKED: the rows P[i][a][.] of a scenario are contiguous, thus the row
+	 *       updates V += x_n*P[i][0] + x_c*P[i][1] are done as fused multiply-adds over SPECIES.length() lanes
+	 */
+
+	static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	public double propagate(double[] P, int p, int n, int qOffset, double[] X_n, double[] X_c, int base,
+			double[] V, int vBase) {
+
+		int width = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		for(int j=0;j<n;j++) V[vBase+j] = 0;
+
+		for(int i=0;i<n;i++) {
+			double xn = X_n[base+i];
+			double xc = X_c[base+i];
+			if(xn == 0 && xc == 0) continue;
+			int r = p + i*2*n;
+			DoubleVector vn = DoubleVector.broadcast(SPECIES, xn);
+			DoubleVector vc = DoubleVector.broadcast(SPECIES, xc);
+			int j = 0;
+			for(;j<bound;j+=width) {
+				DoubleVector v = DoubleVector.fromArray(SPECIES, V, vBase+j);
+				v = DoubleVector.fromArray(SPECIES, P, r+j).fma(vn, v);
+				v = DoubleVector.fromArray(SPECIES, P, r+n+j).fma(vc, v);
+				v.intoArray(V, vBase+j);
+			}
+			for(;j<n;j++) {
+				V[vBase+j] += xn * P[r+j] + xc * P[r+n+j];
+			}
+		}
+
+		// Q[i][0] and Q[i][1] are interleaved, the absorbed mass is O(n) and it is summed as in BLOCKED
+		int q = p + qOffset;
+		double z = 0;
+		for(int i=0;i<n;i++) {
+			z += X_n[base+i] * P[q+i*2] + X_c[base+i] * P[q+i*2+1];
+		}
+		return z;
+	}
+}